@@ -123,6 +123,22 @@ JNIEXPORT jintArray JNICALL Java_ND2SDK_Lim_1GetCoordsFromSeqIndex
 JNIEXPORT jint JNICALL Java_ND2SDK_Lim_1FileGetImageData
   (JNIEnv *, jobject, jint, jint, jobject, jobject);
 
+/*
+ * Class:     ND2SDK
+ * Method:    Lim_FileGetImageRectData
+ * Signature: (IIIIIIIILjava/nio/ByteBuffer;IILLocalMetadata;)I
+ */
+JNIEXPORT jint JNICALL Java_ND2SDK_Lim_1FileGetImageRectData
+  (JNIEnv *, jobject, jint, jint, jint, jint, jint, jint, jint, jint, jobject, jint, jint, jobject);
+
+/*
+ * Class:     ND2SDK
+ * Method:    Lim_FileGetImageDataStats
+ * Signature: (IILjava/nio/ByteBuffer;LLocalMetadata;I[D[D[D[D[J)I
+ */
+JNIEXPORT jint JNICALL Java_ND2SDK_Lim_1FileGetImageDataStats
+  (JNIEnv *, jobject, jint, jint, jobject, jobject, jint, jdoubleArray, jdoubleArray, jdoubleArray, jdoubleArray, jlongArray);
+
 #ifdef __cplusplus
 }
 #endif
@@ -0,0 +1,40 @@
+/** 
+ * The LIMATTRIBUTES struct found in nd2ReadSDK.h 
+ * <pre>
+ * int uiWidth;             // Width of images, in pixels
+ * int uiWidthBytes;        // Line length 4-byte aligned
+ * int uiHeight;            // Height of images, in pixels
+ * int uiComp;              // Number of components
+ * int uiBpcInMemory;       // Bits per component 8, 16 or 32 (for float image)
+ * int uiBpcSignificant;    // Bits per component used 8 .. 16 or 32 (for float image)
+ * int uiSequenceCount;     // Number of images in the sequence
+ * int uiTileWidth;         // If an image is tiled then the width of the tile/strip, otherwise zero
+ * int uiTileHeight;        // If an image is tiled then the height of the tile/strip, otherwise zero
+ * int uiCompression;       // 0 (lossless), 1 (lossy), 2 (None)
+ * int uiQuality;           // 0 (worst) - 100 (best)
+ * </pre>
+ */
+class Attributes {
+	/** Width of images, in pixels */
+	int uiWidth;
+	/** Line length 4-byte aligned */
+	int uiWidthBytes;
+	/** Height of images, in pixels */
+	int uiHeight;
+	/** Number of components */
+	int uiComp;
+	/** Bits per component 8, 16 or 32 (for float image) */
+	int uiBpcInMemory;
+	/** Bits per component used 8 .. 16 or 32 (for float image) */
+	int uiBpcSignificant;
+	/** Number of images in the sequence */
+	int uiSequenceCount;
+	/** If an image is tiled then the width of the tile/strip, otherwise zero */
+	int uiTileWidth;
+	/** If an image is tiled then the height of the tile/strip, otherwise zero */
+	int uiTileHeight;
+	/** 0 (lossless), 1 (lossy), 2 (None) */
+	int uiCompression;
+	/** 0 (worst) - 100 (best) */
+	int uiQuality;
+}
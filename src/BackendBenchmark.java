@@ -0,0 +1,37 @@
+/**
+ * Measures the time per {@link ND2SDK#getSeqBytes(int)} call with the JNI and the
+ * {@link ND2SDKForeign java.lang.foreign} backends.
+ *
+ * <p>Run it against the stub library (nd2ReadSDKStub.c) to measure the overhead of
+ * the bridge itself: with a tiny frame (e.g., {@code ND2STUB_WIDTH=1 ND2STUB_HEIGHT=1})
+ * almost all of the time is spent crossing into native code and filling the Java
+ * objects, e.g.,</p>
+ * <pre>
+ * ND2STUB_WIDTH=1 ND2STUB_HEIGHT=1 java --enable-preview -Djava.library.path=. \
+ *     -Dnd2sdk.library=./libnd2ReadSDK.so BackendBenchmark
+ * </pre>
+ */
+public class BackendBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		for (String backend : new String[] {ND2SDK.BACKEND_JNI, ND2SDK.BACKEND_FOREIGN}) {
+			final ND2SDK nd2 = new ND2SDK(backend);
+			try {
+				nd2.initialize("benchmark.nd2");
+				final int n = nd2.attribs.uiSequenceCount;
+
+				// warm up, then measure
+				for (int i = 0; i < Math.min(iterations, 20000); i++) nd2.getSeqBytes(i % n);
+				final long start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) nd2.getSeqBytes(i % n);
+				final double ns = (System.nanoTime() - start) / (double) iterations;
+
+				System.out.println(String.format("%-8s %d x %d x %d (%d-bit): %10.1f ns/frame",
+						backend, nd2.width, nd2.height, nd2.numChannels, nd2.attribs.uiBpcInMemory, ns));
+			} finally {
+				nd2.deinitialize();
+			}
+		}
+	}
+}
@@ -0,0 +1,13 @@
+/** 
+ * The LIMBINARIES struct found in nd2ReadSDK.h 
+ * <pre>
+ * int uiCount;                              // Number of binary layers
+ * {@link BinaryDescriptor}[] pDescriptors;  // Describes a binary layer: name, associated component, color 
+ * </pre>
+ */
+class Binaries {
+	/** Number of binary layers */
+	int uiCount;
+	/** Describes a binary layer: name, associated component, color. */
+	BinaryDescriptor[] pDescriptors;
+}
@@ -0,0 +1,16 @@
+/** 
+ * The LIMBINARIES struct found in nd2ReadSDK.h
+ * <pre>
+ * String wszName;     // Name of binary layer
+ * String wszCompName; // Name of component, or empty string if this binary layer is unbound
+ * int uiColorRGB;     // Color of the binary layer
+ * </pre> 
+ */
+class BinaryDescriptor {
+	/** Name of binary layer. */
+	String wszName;
+	/** Name of component, or empty string if this binary layer is unbound. */
+	String wszCompName;
+	/** Color of the binary layer. */
+	int uiColorRGB;
+}
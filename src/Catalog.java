@@ -0,0 +1,458 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compact, columnar file for storing the metadata of many ND2 files.
+ *
+ * <p>The file starts with a header that lists the name and type of every column
+ * (see {@link #COLUMNS} and {@link #TYPES}). Afterwards, the rows are appended in
+ * blocks. Within a block the values are stored column by column and the block is
+ * compressed, so repeated values (e.g., the objective name or the author) take up
+ * very little space. A block is only written once it is complete, so a catalog
+ * file that was interrupted while it was being written can still be read.</p>
+ *
+ * <p>Rows are never modified in place. If a file is cataloged again then a new
+ * row is appended and the most recent row for a {@code path} is the one that is
+ * returned by {@link #read(File)}. {@link #compact(File)} removes the rows that
+ * were replaced, so that the file does not grow with every scan.</p>
+ */
+public class Catalog {
+
+	/** Identifies a catalog file */
+	public static final int MAGIC = 0x4E44324B; // "ND2K"
+
+	/** The version of the catalog file format */
+	public static final int VERSION = 1;
+
+	/** The column names */
+	public static final String[] COLUMNS = {
+		"path", "fileSize", "lastModified", "error",
+		"uiWidth", "uiHeight", "uiComp", "uiBpcInMemory", "uiBpcSignificant", "uiSequenceCount",
+		"numFrames", "numSlices", "numPoints",
+		"dTimeStart", "dCalibration", "wszObjectiveName", "dObjectiveMag", "dObjectiveNA", "channels",
+		"wszImageID", "wszType", "wszGroup", "wszSampleID", "wszAuthor", "wszDescription", "wszCapturing",
+		"wszSampling", "wszLocation", "wszDate", "wszConclusion", "wszInfo1", "wszInfo2", "wszOptics",
+	};
+
+	/**
+	 * The column types, using the same letters as a JNI field signature:
+	 * I (int), J (long), D (double), S (String)
+	 */
+	public static final char[] TYPES = {
+		'S', 'J', 'J', 'S',
+		'I', 'I', 'I', 'I', 'I', 'I',
+		'I', 'I', 'I',
+		'D', 'D', 'S', 'D', 'D', 'S',
+		'S', 'S', 'S', 'S', 'S', 'S', 'S',
+		'S', 'S', 'S', 'S', 'S', 'S', 'S',
+	};
+
+	/** The number of rows that are stored in a block */
+	public static final int BLOCK_SIZE = 256;
+
+	/** The index of the {@code path} column */
+	public static final int PATH = 0;
+
+	/** The index of the {@code fileSize} column */
+	public static final int FILE_SIZE = 1;
+
+	/** The index of the {@code lastModified} column */
+	public static final int LAST_MODIFIED = 2;
+
+	/** The index of the {@code error} column */
+	public static final int ERROR = 3;
+
+	/**
+	 * Returns the index of a column.
+	 *
+	 * @param name the column name
+	 * @return the index in {@link #COLUMNS} or -1 if there is no column with this name
+	 */
+	public static int columnIndex(final String name) {
+		for (int i = 0; i < COLUMNS.length; i++) {
+			if (COLUMNS[i].equals(name)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Creates a row from the metadata of an ND2 file that was opened with
+	 * {@link ND2SDK#initializeMetadata(String)}.
+	 *
+	 * @param file the ND2 file
+	 * @param nd2 the opened ND2 file
+	 * @return the row, with the values in the order of {@link #COLUMNS}
+	 */
+	public static Object[] row(final File file, final ND2SDK nd2) {
+		final StringBuilder channels = new StringBuilder();
+		for (int i = 0; i < nd2.metaDesc.uiPlaneCount; i++) {
+			if (i > 0) channels.append('\n');
+			channels.append(nd2.metaDesc.pPlanes[i].wszName);
+		}
+		return new Object[] {
+			file.getPath(), file.length(), file.lastModified(), null,
+			nd2.attribs.uiWidth, nd2.attribs.uiHeight, nd2.attribs.uiComp,
+			nd2.attribs.uiBpcInMemory, nd2.attribs.uiBpcSignificant, nd2.attribs.uiSequenceCount,
+			nd2.numFrames, nd2.numSlices, nd2.numPoints,
+			nd2.metaDesc.dTimeStart, nd2.metaDesc.dCalibration, nd2.metaDesc.wszObjectiveName,
+			nd2.metaDesc.dObjectiveMag, nd2.metaDesc.dObjectiveNA, channels.toString(),
+			nd2.textInfo.wszImageID, nd2.textInfo.wszType, nd2.textInfo.wszGroup, nd2.textInfo.wszSampleID,
+			nd2.textInfo.wszAuthor, nd2.textInfo.wszDescription, nd2.textInfo.wszCapturing,
+			nd2.textInfo.wszSampling, nd2.textInfo.wszLocation, nd2.textInfo.wszDate, nd2.textInfo.wszConclusion,
+			nd2.textInfo.wszInfo1, nd2.textInfo.wszInfo2, nd2.textInfo.wszOptics,
+		};
+	}
+
+	/**
+	 * Creates a row for an ND2 file that could not be read. Only the {@code path},
+	 * {@code fileSize}, {@code lastModified} and {@code error} values are set.
+	 *
+	 * @param file the ND2 file
+	 * @param error the reason why the file could not be read
+	 * @return the row, with the values in the order of {@link #COLUMNS}
+	 */
+	public static Object[] errorRow(final File file, final String error) {
+		final Object[] row = new Object[COLUMNS.length];
+		row[PATH] = file.getPath();
+		row[FILE_SIZE] = file.length();
+		row[LAST_MODIFIED] = file.lastModified();
+		row[ERROR] = error == null ? "" : error;
+		return row;
+	}
+
+	/**
+	 * Reads all rows in a catalog file. If a {@code path} was cataloged more
+	 * than once then only the most recent row is returned.
+	 *
+	 * @param file the catalog file
+	 * @return the rows, the key is the {@code path}
+	 * @throws IOException if the file is not a catalog file or cannot be read
+	 */
+	public static Map<String, Object[]> read(final File file) throws IOException {
+		final Map<String, Object[]> rows = new LinkedHashMap<String, Object[]>();
+		read(file, rows);
+		return rows;
+	}
+
+	/**
+	 * Rewrites a catalog file with only the most recent row for every {@code path}.
+	 * The file is replaced only after the compacted copy was written completely.
+	 *
+	 * @param file the catalog file
+	 * @return the number of rows that were removed
+	 * @throws IOException if the file is not a catalog file or cannot be rewritten
+	 */
+	public static int compact(final File file) throws IOException {
+		final Map<String, Object[]> rows = new LinkedHashMap<String, Object[]>();
+		final int removed = read(file, rows) - rows.size();
+		if (removed == 0) return 0;
+
+		final File tmp = new File(file.getPath() + ".tmp");
+		Files.deleteIfExists(tmp.toPath());
+		final Writer writer = new Writer(tmp);
+		try {
+			for (Object[] row : rows.values()) {
+				writer.append(row);
+			}
+		} finally {
+			writer.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return removed;
+	}
+
+	/**
+	 * Reads all rows in a catalog file into {@code rows}, the most recent row for a
+	 * {@code path} replaces the previous ones.
+	 *
+	 * @return the number of rows in the file
+	 */
+	private static int read(final File file, final Map<String, Object[]> rows) throws IOException {
+		int numRows = 0;
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			final int[] map = readHeader(in);
+			final Inflater inflater = new Inflater();
+			try {
+				while (true) {
+					final List<Object[]> block = readBlock(in, map, inflater);
+					if (block == null) break;
+					for (Object[] row : block) {
+						rows.put((String) row[PATH], row);
+					}
+					numRows += block.size();
+				}
+			} finally {
+				inflater.end();
+			}
+		} finally {
+			in.close();
+		}
+		return numRows;
+	}
+
+	/**
+	 * Reads the header and returns, for each column in the file, the index of
+	 * the column in {@link #COLUMNS} (or -1 if the column is no longer used).
+	 */
+	private static int[] readHeader(final DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) throw new IOException("Not a catalog file");
+		final int version = in.readInt();
+		if (version > VERSION) throw new IOException("Unsupported catalog version " + version);
+		final int n = in.readInt();
+		final int[] map = new int[n];
+		for (int i = 0; i < n; i++) {
+			final String name = in.readUTF();
+			final char type = in.readChar();
+			map[i] = columnIndex(name);
+			if (map[i] >= 0 && TYPES[map[i]] != type)
+				throw new IOException("Column " + name + " has type " + type + ", expected " + TYPES[map[i]]);
+		}
+		return map;
+	}
+
+	/**
+	 * Reads the next block of rows.
+	 *
+	 * @return the rows or {@code null} if there are no more (complete) blocks
+	 */
+	private static List<Object[]> readBlock(final DataInputStream in, final int[] map,
+			final Inflater inflater) throws IOException {
+		final int numRows, rawSize, size;
+		final byte[] compressed;
+		try {
+			numRows = in.readInt();
+			rawSize = in.readInt();
+			size = in.readInt();
+			compressed = new byte[size];
+			in.readFully(compressed);
+		} catch (EOFException e) {
+			// the end of the file or an incomplete block from an interrupted scan
+			return null;
+		}
+
+		final byte[] raw = new byte[rawSize];
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			if (inflater.inflate(raw) != rawSize) throw new IOException("Corrupt catalog block");
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt catalog block", e);
+		}
+
+		final Object[][] rows = new Object[numRows][COLUMNS.length];
+		final DataInputStream block = new DataInputStream(new ByteArrayInputStream(raw));
+		for (int c = 0; c < map.length; c++) {
+			final int column = map[c];
+			final char type = block.readChar();
+			for (int r = 0; r < numRows; r++) {
+				final Object value = readValue(block, type);
+				if (column >= 0) rows[r][column] = value;
+			}
+		}
+
+		final List<Object[]> list = new ArrayList<Object[]>(numRows);
+		for (Object[] row : rows) list.add(row);
+		return list;
+	}
+
+	/**
+	 * Returns the number of bytes in the header of a catalog file with the current columns.
+	 */
+	private static long headerSize() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writeHeader(new DataOutputStream(bytes));
+		return bytes.size();
+	}
+
+	private static void writeHeader(final DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(COLUMNS.length);
+		for (int i = 0; i < COLUMNS.length; i++) {
+			out.writeUTF(COLUMNS[i]);
+			out.writeChar(TYPES[i]);
+		}
+		out.flush();
+	}
+
+	private static Object readValue(final DataInputStream in, final char type) throws IOException {
+		if (!in.readBoolean()) return null;
+		switch (type) {
+			case 'I': return in.readInt();
+			case 'J': return in.readLong();
+			case 'D': return in.readDouble();
+			case 'S':
+				final byte[] b = new byte[in.readInt()];
+				in.readFully(b);
+				return new String(b, StandardCharsets.UTF_8);
+			default:
+				throw new IOException("Unknown column type " + type);
+		}
+	}
+
+	private static void writeValue(final DataOutputStream out, final char type, final Object value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value == null) return;
+		switch (type) {
+			case 'I': out.writeInt(((Number) value).intValue()); break;
+			case 'J': out.writeLong(((Number) value).longValue()); break;
+			case 'D': out.writeDouble(((Number) value).doubleValue()); break;
+			case 'S':
+				final byte[] b = value.toString().getBytes(StandardCharsets.UTF_8);
+				out.writeInt(b.length);
+				out.write(b);
+				break;
+			default:
+				throw new IOException("Unknown column type " + type);
+		}
+	}
+
+	/**
+	 * Appends rows to a catalog file. The rows are buffered and written as a
+	 * block once {@link #BLOCK_SIZE} rows have been added, or when {@link #flush()}
+	 * or {@link #close()} is called. All methods are thread safe.
+	 */
+	public static class Writer implements Closeable {
+
+		private final DataOutputStream out;
+		private final List<Object[]> pending = new ArrayList<Object[]>(BLOCK_SIZE);
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private final byte[] deflateBuffer = new byte[64 * 1024];
+
+		/**
+		 * Opens a catalog file for appending. The header is written if the file
+		 * does not exist (or is empty).
+		 *
+		 * @param file the catalog file
+		 * @throws IOException if the file cannot be opened
+		 */
+		public Writer(final File file) throws IOException {
+			final boolean exists = file.isFile() && file.length() > 0;
+			if (exists) {
+				// make sure that the header is compatible with the current columns and
+				// remove an incomplete block that was left behind by an interrupted scan
+				long validLength = 0;
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				try {
+					final int[] map = readHeader(in);
+					if (map.length != COLUMNS.length) throw new IOException("The columns in " + file + " are out of date");
+					for (int i = 0; i < map.length; i++) {
+						if (map[i] != i) throw new IOException("The columns in " + file + " are out of date");
+					}
+					validLength = headerSize();
+					final long fileLength = file.length();
+					while (true) {
+						try {
+							in.readInt();
+							in.readInt();
+							final int size = in.readInt();
+							// skipping can go past the end of the file, so the block is checked against the length
+							if (size < 0 || validLength + 12 + size > fileLength) break;
+							in.skipBytes(size);
+							validLength += 12 + size;
+						} catch (EOFException e) {
+							break;
+						}
+					}
+				} finally {
+					in.close();
+				}
+				if (validLength < file.length()) {
+					final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+					try {
+						raf.setLength(validLength);
+					} finally {
+						raf.close();
+					}
+				}
+			}
+			out = new DataOutputStream(new FileOutputStream(file, true));
+			if (!exists) writeHeader(out);
+		}
+
+		/**
+		 * Adds a row.
+		 *
+		 * @param row the values in the order of {@link #COLUMNS}
+		 * @throws IOException if a block could not be written
+		 */
+		public synchronized void append(final Object[] row) throws IOException {
+			if (row.length != COLUMNS.length)
+				throw new IllegalArgumentException("Expected " + COLUMNS.length + " values, got " + row.length);
+			pending.add(row);
+			if (pending.size() >= BLOCK_SIZE) flush();
+		}
+
+		/**
+		 * Writes the buffered rows to the file.
+		 *
+		 * @throws IOException if the block could not be written
+		 */
+		public synchronized void flush() throws IOException {
+			if (pending.isEmpty()) return;
+
+			// serialize the values column by column
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream block = new DataOutputStream(bytes);
+			for (int c = 0; c < COLUMNS.length; c++) {
+				block.writeChar(TYPES[c]);
+				for (Object[] row : pending) {
+					writeValue(block, TYPES[c], row[c]);
+				}
+			}
+			block.flush();
+			final byte[] raw = bytes.toByteArray();
+
+			// compress the block
+			final ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4 + 64);
+			deflater.reset();
+			deflater.setInput(raw);
+			deflater.finish();
+			while (!deflater.finished()) {
+				final int n = deflater.deflate(deflateBuffer);
+				compressed.write(deflateBuffer, 0, n);
+			}
+
+			out.writeInt(pending.size());
+			out.writeInt(raw.length);
+			out.writeInt(compressed.size());
+			compressed.writeTo(out);
+			out.flush();
+			pending.clear();
+		}
+
+		/**
+		 * Writes the buffered rows and closes the file.
+		 */
+		@Override
+		public synchronized void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				deflater.end();
+				out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,188 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Walks a directory tree and writes the metadata of every ND2 file to a
+ * {@link Catalog} file.
+ *
+ * <p>Each ND2 file is opened with {@link ND2SDK#initializeMetadata(String)}, so
+ * no pixel data is read or allocated. The files are opened by a fixed number of
+ * threads and at most a few files per thread are queued while the directory tree
+ * is being walked. The rows are written to the catalog once a block of
+ * {@link Catalog#BLOCK_SIZE} rows is complete, or after {@link #FLUSH_INTERVAL_MS}
+ * at the latest, so an interrupted scan keeps the results of all files except the
+ * most recently read ones.</p>
+ *
+ * <p>The files are cataloged by their absolute, normalized path. If the catalog
+ * file already exists then a file whose size and last-modified time are unchanged
+ * since it was cataloged is skipped, unless it could not be read then. A file that
+ * is cataloged again replaces its previous row, and the catalog is compacted (see
+ * {@link Catalog#compact(File)}) at the end of the scan.</p>
+ */
+public class CatalogScanner {
+
+	/** The maximum time, in milliseconds, that rows are held in memory before they are written */
+	public static final long FLUSH_INTERVAL_MS = 5000;
+
+	/** The number of files that were cataloged */
+	public final AtomicInteger numScanned = new AtomicInteger();
+
+	/** The number of files that were skipped because they are unchanged */
+	public final AtomicInteger numSkipped = new AtomicInteger();
+
+	/** The number of files that could not be read (an error row is written for these) */
+	public final AtomicInteger numFailed = new AtomicInteger();
+
+	private final int numThreads;
+
+	/**
+	 * @param numThreads the maximum number of ND2 files that are opened at the same time
+	 */
+	public CatalogScanner(final int numThreads) {
+		if (numThreads < 1) throw new IllegalArgumentException("numThreads must be >= 1");
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Catalogs all ND2 files in a directory tree.
+	 *
+	 * @param root the root directory
+	 * @param catalogFile the catalog file to create or to update
+	 * @throws IOException if the directory tree cannot be walked or the catalog cannot be written
+	 */
+	public void scan(final File root, final File catalogFile) throws IOException {
+		if (ND2SDK.BACKEND_JNI.equals(ND2SDK.defaultBackendName()) && !ND2SDK.libLoaded)
+			throw new IOException(ND2SDK.libLoadedErrorMsg);
+
+		final Map<String, Object[]> existing = catalogFile.isFile() && catalogFile.length() > 0
+				? Catalog.read(catalogFile) : Collections.<String, Object[]>emptyMap();
+
+		final Catalog.Writer writer = new Catalog.Writer(catalogFile);
+
+		// a bounded queue keeps the walk from running far ahead of the readers
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads,
+				0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(4 * numThreads),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+
+		final IOException[] writeError = new IOException[1];
+		final AtomicBoolean replaced = new AtomicBoolean();
+		final AtomicLong lastFlush = new AtomicLong(System.nanoTime());
+		try {
+			Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(final Path path, final BasicFileAttributes attrs) {
+					if (!attrs.isRegularFile() || !path.toString().toLowerCase().endsWith(".nd2"))
+						return FileVisitResult.CONTINUE;
+
+					// the same file has the same key, whichever way the root was given
+					final File file = path.toAbsolutePath().normalize().toFile();
+					final Object[] previous = existing.get(file.getPath());
+					if (previous != null) {
+						if (previous[Catalog.ERROR] == null
+								&& ((Long) previous[Catalog.FILE_SIZE]) == attrs.size()
+								&& ((Long) previous[Catalog.LAST_MODIFIED]) == attrs.lastModifiedTime().toMillis()) {
+							numSkipped.incrementAndGet();
+							return FileVisitResult.CONTINUE;
+						}
+						replaced.set(true);
+					}
+
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								writer.append(readRow(file));
+								final long now = System.nanoTime(), last = lastFlush.get();
+								if (now - last > FLUSH_INTERVAL_MS * 1000000L && lastFlush.compareAndSet(last, now)) {
+									writer.flush();
+								}
+							} catch (IOException e) {
+								synchronized (writeError) {
+									if (writeError[0] == null) writeError[0] = e;
+								}
+							}
+						}
+					});
+					return writeError[0] == null ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(final Path path, final IOException e) {
+					// an unreadable directory or file should not stop the scan
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} finally {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writer.close();
+		}
+
+		if (writeError[0] != null) throw writeError[0];
+
+		// drop the rows of the files that were cataloged again
+		if (replaced.get()) Catalog.compact(catalogFile);
+	}
+
+	/**
+	 * Opens an ND2 file for the metadata and creates the catalog row.
+	 *
+	 * @param file the ND2 file, with its absolute, normalized path
+	 */
+	private Object[] readRow(final File file) {
+		final ND2SDK nd2 = new ND2SDK();
+		try {
+			nd2.initializeMetadata(file.getPath());
+			final Object[] row = Catalog.row(file, nd2);
+			numScanned.incrementAndGet();
+			return row;
+		} catch (Throwable t) {
+			numFailed.incrementAndGet();
+			return Catalog.errorRow(file, t.getMessage());
+		} finally {
+			nd2.deinitialize();
+		}
+	}
+
+	/**
+	 * Usage: {@code CatalogScanner <directory> <catalog file> [number of threads]}
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: CatalogScanner <directory> <catalog file> [number of threads]");
+			return;
+		}
+
+		final int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		final CatalogScanner scanner = new CatalogScanner(numThreads);
+
+		final long start = System.nanoTime();
+		try {
+			scanner.scan(new File(args[0]), new File(args[1]));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		System.out.println(String.format("Scanned %d, skipped %d (unchanged), failed %d in %.1f seconds",
+				scanner.numScanned.get(), scanner.numSkipped.get(), scanner.numFailed.get(),
+				(System.nanoTime() - start) * 1e-9));
+	}
+}
@@ -0,0 +1,354 @@
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A 16-bit ImageJ stack that keeps every plane compressed in memory.
+ *
+ * <p>The planes are coded losslessly by {@link PlaneCodec} and are decoded when
+ * they are accessed. The most recently accessed planes are kept decoded in a
+ * small cache (see {@link #setCacheSize(int)}), so that going back and forth
+ * between neighbouring slices does not decode them again. Use
+ * {@link #load(ND2SDK, int)} to read all of the planes of an ND2 file, in the same
+ * order as the stack that is created in Test.java (channels, then sequence
+ * indices), while the planes are encoded in parallel.</p>
+ *
+ * <p>{@link #getPixels(int)} returns a copy of the plane, so the stack can be
+ * edited with {@link #setPixels(Object, int)} like any other stack.</p>
+ */
+public class CompressedStack extends VirtualStack {
+
+	/** The number of times a plane was found in the cache */
+	public final AtomicLong cacheHits = new AtomicLong();
+
+	/** The number of times a plane was decoded */
+	public final AtomicLong cacheMisses = new AtomicLong();
+
+	private final int width;
+	private final int height;
+	private final List<byte[]> planes = new ArrayList<byte[]>();
+	private final List<String> labels = new ArrayList<String>();
+	private final LinkedHashMap<Integer, short[]> cache = new LinkedHashMap<Integer, short[]>(16, 0.75f, true);
+	private int cacheSize = 8;
+
+	/**
+	 * Creates an empty stack.
+	 */
+	public CompressedStack(final int width, final int height) {
+		super(width, height, null, null);
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Reads every component of every sequence index of an ND2 file into a new stack.
+	 * The frames are read by the calling thread and the planes are encoded by
+	 * {@code numThreads} threads.
+	 *
+	 * @param nd2 an ND2 file that was opened with {@link ND2SDK#initialize(String)}
+	 * @param numThreads the number of threads that encode the planes
+	 * @throws IOException if the file is not 16-bit or a frame cannot be read
+	 */
+	public static CompressedStack load(final ND2SDK nd2, final int numThreads) throws IOException {
+		if (nd2.attribs.uiBpcInMemory != 16)
+			throw new IOException("Only 16-bit files can be loaded into a CompressedStack");
+		if (numThreads < 1) throw new IllegalArgumentException("numThreads must be >= 1");
+
+		final int numComponents = nd2.attribs.uiComp;
+		final int lineBytes = nd2.attribs.uiWidthBytes;
+		final int width = nd2.width, height = nd2.height;
+		return build(width, height, nd2.attribs.uiSequenceCount * numComponents, new PlaneReader() {
+			private ByteBuffer bb;
+
+			@Override
+			public short[] read(final int index) throws IOException {
+				final int c = index % numComponents;
+				if (c == 0) bb = nd2.getSeqBytes(index / numComponents);
+				final short[] plane = new short[width * height];
+				int i = 0;
+				for (int y = 0; y < height; y++) {
+					int offset = y * lineBytes + 2 * c;
+					for (int x = 0; x < width; x++) {
+						plane[i++] = bb.getShort(offset);
+						offset += 2 * numComponents;
+					}
+				}
+				return plane;
+			}
+		}, numThreads);
+	}
+
+	/**
+	 * Reads the planes of a new stack one at a time, in order.
+	 */
+	interface PlaneReader {
+		short[] read(int index) throws IOException;
+	}
+
+	/**
+	 * Creates a stack with the planes that are read by the calling thread and encoded
+	 * by {@code numThreads} threads.
+	 */
+	static CompressedStack build(final int width, final int height, final int numPlanes,
+			final PlaneReader reader, final int numThreads) throws IOException {
+		final CompressedStack stack = new CompressedStack(width, height);
+		for (int i = 0; i < numPlanes; i++) {
+			stack.planes.add(null);
+			stack.labels.add(null);
+		}
+
+		// a bounded queue limits the number of planes that are waiting to be encoded
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads,
+				0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(2 * numThreads),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		final Throwable[] error = new Throwable[1];
+		try {
+			for (int index = 0; index < numPlanes; index++) {
+				final short[] plane = reader.read(index);
+				final int i = index;
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							final byte[] data = PlaneCodec.encode(plane, width, height);
+							synchronized (stack) {
+								stack.planes.set(i, data);
+							}
+						} catch (Throwable t) {
+							synchronized (error) {
+								if (error[0] == null) error[0] = t;
+							}
+						}
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (error[0] != null) throw new IOException("Cannot encode a plane", error[0]);
+		return stack;
+	}
+
+	/**
+	 * Sets the maximum number of decoded planes that are kept in memory (default 8).
+	 */
+	public void setCacheSize(final int cacheSize) {
+		if (cacheSize < 0) throw new IllegalArgumentException("cacheSize must be >= 0");
+		synchronized (cache) {
+			this.cacheSize = cacheSize;
+			trimCache();
+		}
+	}
+
+	/**
+	 * The number of bytes of the planes before they were compressed.
+	 */
+	public synchronized long rawBytes() {
+		return 2L * width * height * planes.size();
+	}
+
+	/**
+	 * The number of bytes of the compressed planes.
+	 */
+	public synchronized long compressedBytes() {
+		long n = 0;
+		for (byte[] data : planes) {
+			if (data != null) n += data.length;
+		}
+		return n;
+	}
+
+	/**
+	 * The ratio of {@link #rawBytes()} to {@link #compressedBytes()}.
+	 */
+	public double compressionRatio() {
+		final long compressed = compressedBytes();
+		return compressed == 0 ? 1.0 : (double) rawBytes() / compressed;
+	}
+
+	@Override
+	public void addSlice(final String label, final Object pixels) {
+		if (!(pixels instanceof short[]) || ((short[]) pixels).length != width * height)
+			throw new IllegalArgumentException("The pixels must be a short[] of width * height elements");
+		final byte[] data = PlaneCodec.encode((short[]) pixels, width, height);
+		synchronized (this) {
+			planes.add(data);
+			labels.add(label);
+		}
+	}
+
+	@Override
+	public void addSlice(final String label) {
+		addSlice(label, new short[width * height]);
+	}
+
+	@Override
+	public void addSlice(final String label, final ImageProcessor ip) {
+		checkSize(ip);
+		addSlice(label, ip.convertToShort(false).getPixels());
+	}
+
+	/**
+	 * Inserts a slice after slice {@code n} (0 &lt;= n &lt;= nslices).
+	 */
+	@Override
+	public void addSlice(final String label, final ImageProcessor ip, final int n) {
+		if (n < 0 || n > getSize())
+			throw new IllegalArgumentException("Argument out of range: " + n);
+		checkSize(ip);
+		final byte[] data = PlaneCodec.encode((short[]) ip.convertToShort(false).getPixels(), width, height);
+		synchronized (this) {
+			planes.add(n, data);
+			labels.add(n, label);
+		}
+		clearCache();
+	}
+
+	@Override
+	public void deleteSlice(final int n) {
+		checkIndex(n);
+		synchronized (this) {
+			planes.remove(n - 1);
+			labels.remove(n - 1);
+		}
+		clearCache();
+	}
+
+	@Override
+	public void deleteLastSlice() {
+		if (getSize() > 0) deleteSlice(getSize());
+	}
+
+	/**
+	 * Returns a copy of the pixels of slice {@code n} (1 &lt;= n &lt;= nslices).
+	 */
+	@Override
+	public Object getPixels(final int n) {
+		return decoded(n).clone();
+	}
+
+	/**
+	 * Replaces the pixels of slice {@code n} (1 &lt;= n &lt;= nslices).
+	 */
+	@Override
+	public void setPixels(final Object pixels, final int n) {
+		checkIndex(n);
+		if (!(pixels instanceof short[]) || ((short[]) pixels).length != width * height)
+			throw new IllegalArgumentException("The pixels must be a short[] of width * height elements");
+		final byte[] data = PlaneCodec.encode((short[]) pixels, width, height);
+		synchronized (this) {
+			planes.set(n - 1, data);
+		}
+		synchronized (cache) {
+			cache.remove(n);
+		}
+	}
+
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		return new ShortProcessor(width, height, (short[]) getPixels(n), getColorModel());
+	}
+
+	@Override
+	public int saveChanges(final int n) {
+		return 0;
+	}
+
+	@Override
+	public synchronized int getSize() {
+		return planes.size();
+	}
+
+	@Override
+	public synchronized String getSliceLabel(final int n) {
+		checkIndex(n);
+		return labels.get(n - 1);
+	}
+
+	@Override
+	public synchronized void setSliceLabel(final String label, final int n) {
+		checkIndex(n);
+		labels.set(n - 1, label);
+	}
+
+	@Override
+	public String getFileName(final int n) {
+		return getSliceLabel(n);
+	}
+
+	@Override
+	public int getBitDepth() {
+		return 16;
+	}
+
+	/**
+	 * Returns the cached or the newly decoded pixels of slice {@code n}, which must not be modified.
+	 */
+	private short[] decoded(final int n) {
+		checkIndex(n);
+		synchronized (cache) {
+			final short[] pixels = cache.get(n);
+			if (pixels != null) {
+				cacheHits.incrementAndGet();
+				return pixels;
+			}
+		}
+
+		final byte[] data;
+		synchronized (this) {
+			data = planes.get(n - 1);
+		}
+		final short[] pixels = new short[width * height];
+		PlaneCodec.decode(data, pixels, width, height);
+		cacheMisses.incrementAndGet();
+
+		synchronized (cache) {
+			if (cacheSize > 0) {
+				cache.put(n, pixels);
+				trimCache();
+			}
+		}
+		return pixels;
+	}
+
+	private void trimCache() {
+		final Iterator<Map.Entry<Integer, short[]>> it = cache.entrySet().iterator();
+		while (cache.size() > cacheSize && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	private void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	private void checkIndex(final int n) {
+		if (n < 1 || n > getSize())
+			throw new IllegalArgumentException("Argument out of range: " + n);
+	}
+
+	private void checkSize(final ImageProcessor ip) {
+		if (ip.getWidth() != width || ip.getHeight() != height)
+			throw new IllegalArgumentException("Dimensions do not match");
+	}
+}
@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the compression ratio of {@link CompressedStack} and how long it takes
+ * to load the stack and to access its planes.
+ *
+ * <p>Without arguments the planes are a synthetic fluorescence time-lapse: moving
+ * Gaussian spots on a camera offset of 100, with shot noise and read noise,
+ * clipped to 12 bits. With the path of an ND2 file the planes of the file are
+ * used instead, e.g.,</p>
+ * <pre>
+ * java CompressedStackBenchmark [width] [height] [planes]
+ * java -Djava.library.path=&lt;dir of libND2SDK&gt; CompressedStackBenchmark sample.nd2
+ * </pre>
+ */
+public class CompressedStackBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+		final CompressedStack stack;
+		final double loadMs;
+		if (args.length == 1) {
+			final ND2SDK nd2 = new ND2SDK();
+			try {
+				nd2.initialize(args[0]);
+				final long start = System.nanoTime();
+				stack = CompressedStack.load(nd2, numThreads);
+				loadMs = (System.nanoTime() - start) * 1e-6;
+			} finally {
+				nd2.deinitialize();
+			}
+		} else {
+			final int width = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+			final int height = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+			final int numPlanes = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+			final short[][] planes = new short[numPlanes][];
+			for (int i = 0; i < numPlanes; i++) {
+				planes[i] = fluorescence(width, height, i);
+			}
+
+			final long start = System.nanoTime();
+			stack = CompressedStack.build(width, height, numPlanes, new CompressedStack.PlaneReader() {
+				@Override
+				public short[] read(final int index) {
+					return planes[index];
+				}
+			}, numThreads);
+			loadMs = (System.nanoTime() - start) * 1e-6;
+
+			// the coding is lossless
+			for (int n = 1; n <= numPlanes; n++) {
+				if (!Arrays.equals((short[]) stack.getPixels(n), planes[n - 1]))
+					throw new IllegalStateException("Plane " + n + " was not decoded exactly");
+			}
+		}
+
+		final int n = stack.getSize();
+		System.out.println(String.format("%d threads, %d planes of %d x %d pixels",
+				numThreads, n, stack.getWidth(), stack.getHeight()));
+		System.out.println(String.format("raw %.1f MB, compressed %.1f MB, ratio %.2f, load (read + encode) %.0f ms",
+				stack.rawBytes() * 1e-6, stack.compressedBytes() * 1e-6, stack.compressionRatio(), loadMs));
+
+		// a random plane that is not in the cache
+		stack.setCacheSize(0);
+		final Random random = new Random(1);
+		final double[] miss = new double[Math.max(200, n)];
+		for (int i = 0; i < miss.length; i++) {
+			final long t = System.nanoTime();
+			stack.getPixels(1 + random.nextInt(n));
+			miss[i] = (System.nanoTime() - t) * 1e-6;
+		}
+		report("random access (decode)", miss);
+
+		// a plane that is in the cache (copied)
+		stack.setCacheSize(8);
+		stack.getPixels(1);
+		final double[] hit = new double[miss.length];
+		for (int i = 0; i < hit.length; i++) {
+			final long t = System.nanoTime();
+			stack.getPixels(1);
+			hit[i] = (System.nanoTime() - t) * 1e-6;
+		}
+		report("cached access (copy)", hit);
+	}
+
+	private static void report(final String name, final double[] ms) {
+		Arrays.sort(ms);
+		System.out.println(String.format("%-24s p50 %6.2f ms, p99 %6.2f ms",
+				name, ms[ms.length / 2], ms[(int) (ms.length * 0.99)]));
+	}
+
+	/**
+	 * A synthetic 12-bit fluorescence plane, the same for the same index.
+	 */
+	static short[] fluorescence(final int width, final int height, final int index) {
+		final double[] signal = new double[width * height];
+		final Random spots = new Random(42);
+		final int numSpots = width * height / 4096;
+		for (int s = 0; s < numSpots; s++) {
+			final double cx = spots.nextDouble() * width + index * (spots.nextDouble() - 0.5);
+			final double cy = spots.nextDouble() * height + index * (spots.nextDouble() - 0.5);
+			final double sigma = 1.5 + spots.nextDouble() * 4;
+			final double amplitude = 100 + spots.nextDouble() * 1500;
+			final int r = (int) Math.ceil(4 * sigma);
+			for (int y = Math.max(0, (int) cy - r); y < Math.min(height, (int) cy + r); y++) {
+				for (int x = Math.max(0, (int) cx - r); x < Math.min(width, (int) cx + r); x++) {
+					signal[y * width + x] += amplitude
+							* Math.exp(-((x - cx) * (x - cx) + (y - cy) * (y - cy)) / (2 * sigma * sigma));
+				}
+			}
+		}
+
+		final Random noise = new Random(index);
+		final short[] plane = new short[width * height];
+		for (int i = 0; i < plane.length; i++) {
+			final double photons = 20 + signal[i];
+			final double v = 100 + photons + Math.sqrt(photons) * noise.nextGaussian() + 2 * noise.nextGaussian();
+			plane[i] = (short) Math.max(0, Math.min(4095, Math.round(v)));
+		}
+		return plane;
+	}
+}
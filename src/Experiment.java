@@ -0,0 +1,13 @@
+/** 
+ * The LIMEXPERIMENT struct found in nd2ReadSDK.h
+ * <pre>
+ * int uiLevelCount;                    // Number of dimensions excluding Lambda
+ * {@link ExperimentLevel}[] pAllocatedLevels;  // An array containing information about number of frames within each dimension.
+ * </pre>
+ */
+class Experiment {
+	/** Number of dimensions excluding Lambda. */
+	int uiLevelCount;
+	/** An array containing information about number of frames within each dimension. */
+	ExperimentLevel[] pAllocatedLevels; 
+}
@@ -0,0 +1,16 @@
+/** 
+ * The LIMEXPERIMENTLEVEL struct found in nd2ReadSDK.h 
+ * <pre>
+ * int uiExpType;    // Dimension type, see the LIMLOOP_* constant values
+ * int uiLoopSize;   // Number of images in the loop
+ * double dInterval; // ms (for Time), um (for ZStack), -1.0 (for Multipoint)
+ * </pre>
+ */
+class ExperimentLevel {
+	/** Dimension type, see the LIMLOOP_* constant values. */
+	int uiExpType;
+	/** Number of images in the loop. */
+	int uiLoopSize;
+	/** ms (for Time), um (for ZStack), -1.0 (for Multipoint) */
+	double dInterval; 
+}
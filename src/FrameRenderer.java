@@ -0,0 +1,393 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts a raw frame (see {@link ND2SDK#getSeqBytes(int)}) into an 8-bit RGB or
+ * RGBA image for display.
+ *
+ * <p>Every component is scaled from its display range to [0, 255] and multiplied by
+ * its display color (see {@link PicturePlaneDesc#uiColorRGB}), and the colored
+ * components are added together. 8-bit, 16-bit (e.g., 12 significant bits stored in
+ * 16 bits) and 32-bit float frames are supported.</p>
+ *
+ * <p>The arithmetic uses the {@code jdk.incubator.vector} API (see
+ * {@link FrameRendererVector}) when the module is available, for example when the
+ * JVM is started with {@code --add-modules jdk.incubator.vector}, otherwise a scalar
+ * implementation is used. Frames with more than {@link #parallelThreshold} pixels
+ * are split into bands of rows that are rendered in parallel.</p>
+ */
+public class FrameRenderer {
+
+	/** Whether the {@code jdk.incubator.vector} implementation is used. */
+	public static final boolean VECTORIZED = vectorApiAvailable();
+
+	/** The image width, in pixels */
+	public final int width;
+
+	/** The image height, in pixels */
+	public final int height;
+
+	/** The number of components in every pixel */
+	public final int components;
+
+	/** Bits per component 8, 16 or 32 (for float image) */
+	public final int bpc;
+
+	/** The number of bytes in a line of the raw frame (4-byte aligned) */
+	public final int lineBytes;
+
+	/** Frames with more pixels than this are rendered in parallel */
+	public int parallelThreshold = 512 * 512;
+
+	/** The pool that renders large frames */
+	public ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	/** The display color of each component, 0xBBGGRR */
+	private final int[] colors;
+
+	/** The lower end of the display range of each component */
+	private final float[] offsets;
+
+	/** 255 / (max - min) of the display range of each component */
+	private final float[] scales;
+
+	/** The scratch arrays of each thread */
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch(width, components, bpc);
+		}
+	};
+
+	/**
+	 * @param width the image width, in pixels
+	 * @param height the image height, in pixels
+	 * @param components the number of components in every pixel
+	 * @param bpc bits per component 8, 16 or 32 (for float image)
+	 * @param lineBytes the number of bytes in a line of the raw frame
+	 */
+	public FrameRenderer(final int width, final int height, final int components, final int bpc, final int lineBytes) {
+		if (bpc != 8 && bpc != 16 && bpc != 32)
+			throw new IllegalArgumentException("Unsupported bits per component " + bpc);
+		if (lineBytes < width * components * (bpc / 8))
+			throw new IllegalArgumentException("lineBytes is too small for the width");
+		this.width = width;
+		this.height = height;
+		this.components = components;
+		this.bpc = bpc;
+		this.lineBytes = lineBytes;
+		this.colors = new int[components];
+		this.offsets = new float[components];
+		this.scales = new float[components];
+		for (int c = 0; c < components; c++) {
+			colors[c] = 0xFFFFFF;
+			scales[c] = bpc == 32 ? 255f : 255f / ((1 << bpc) - 1);
+		}
+	}
+
+	/**
+	 * Creates a renderer for the frames of an ND2 file that was opened with
+	 * {@link ND2SDK#initialize(String)}. The colors are taken from the
+	 * {@link MetadataDesc} (see {@link #planeColors(ND2SDK)}) and the display range
+	 * of every component is [0, 2<sup>uiBpcSignificant</sup> - 1].
+	 *
+	 * @param nd2 the initialized ND2 file
+	 */
+	public FrameRenderer(final ND2SDK nd2) {
+		this(nd2.picture.uiWidth, nd2.picture.uiHeight, nd2.picture.uiComponents,
+				nd2.attribs.uiBpcInMemory, nd2.picture.uiWidthBytes);
+		final int[] planeColors = planeColors(nd2);
+		for (int c = 0; c < components; c++) {
+			colors[c] = planeColors[c];
+			if (bpc != 32) displayRange(c, 0, (1 << nd2.attribs.uiBpcSignificant) - 1);
+		}
+	}
+
+	/**
+	 * Returns the display color of every component. A logical plane with one
+	 * component uses {@link PicturePlaneDesc#uiColorRGB}, and a logical plane with
+	 * three components (an RGB camera) uses red, green and blue.
+	 *
+	 * @param nd2 the initialized ND2 file
+	 * @return the color of each component, 0xBBGGRR
+	 */
+	public static int[] planeColors(final ND2SDK nd2) {
+		final int[] colors = new int[nd2.attribs.uiComp];
+		for (int c = 0; c < colors.length; c++) colors[c] = 0xFFFFFF;
+		int c = 0;
+		for (int p = 0; p < nd2.metaDesc.uiPlaneCount && c < colors.length; p++) {
+			final int compCount = nd2.metaDesc.pPlanes[p].uiCompCount;
+			if (compCount == 3) {
+				colors[c++] = 0x0000FF;
+				if (c < colors.length) colors[c++] = 0x00FF00;
+				if (c < colors.length) colors[c++] = 0xFF0000;
+			} else {
+				for (int i = 0; i < Math.max(1, compCount) && c < colors.length; i++) {
+					colors[c++] = nd2.metaDesc.pPlanes[p].uiColorRGB;
+				}
+			}
+		}
+		return colors;
+	}
+
+	/**
+	 * Sets the display color of a component.
+	 *
+	 * @param component the component index
+	 * @param colorRGB the color, 0xBBGGRR (the same as {@link PicturePlaneDesc#uiColorRGB})
+	 */
+	public void setColor(final int component, final int colorRGB) {
+		colors[component] = colorRGB & 0xFFFFFF;
+	}
+
+	/**
+	 * Sets the display range of a component. Values &le; {@code min} are black and
+	 * values &ge; {@code max} have the full display color.
+	 *
+	 * @param component the component index
+	 * @param min the lower end of the display range
+	 * @param max the upper end of the display range
+	 */
+	public void setDisplayRange(final int component, final double min, final double max) {
+		displayRange(component, min, max);
+	}
+
+	/**
+	 * Sets the display range of a component, also from the constructor.
+	 */
+	private void displayRange(final int component, final double min, final double max) {
+		offsets[component] = (float) min;
+		scales[component] = max > min ? (float) (255.0 / (max - min)) : Float.MAX_VALUE;
+	}
+
+	/**
+	 * Sets the display range of every component.
+	 *
+	 * @param ranges the {min, max} display range of each component,
+	 * for example, from {@link ND2SDK#displayRanges(int, double, double)}
+	 */
+	public void setDisplayRanges(final double[][] ranges) {
+		for (int c = 0; c < components; c++) {
+			setDisplayRange(c, ranges[c][0], ranges[c][1]);
+		}
+	}
+
+	/**
+	 * Renders a raw frame.
+	 *
+	 * @param src the raw frame, e.g., from {@link ND2SDK#getSeqBytes(int)} (must be little endian)
+	 * @param dst receives the image, starting at index 0. It must have space for
+	 * {@code width * height * 4} bytes for RGBA or {@code width * height * 3} bytes for RGB.
+	 * @param alpha {@code true} to write RGBA (with an opaque alpha), {@code false} to write RGB
+	 */
+	public void render(final ByteBuffer src, final ByteBuffer dst, final boolean alpha) {
+		final int pixelBytes = alpha ? 4 : 3;
+		if (src.capacity() < (long) lineBytes * (height - 1) + width * components * (bpc / 8))
+			throw new IllegalArgumentException("The source buffer is too small for the frame");
+		if (dst.capacity() < (long) width * height * pixelBytes)
+			throw new IllegalArgumentException("The destination buffer is too small for the image");
+
+		final ByteBuffer s = src.duplicate();
+		final ByteBuffer d = dst.duplicate();
+		s.clear();
+		d.clear();
+		s.order(ByteOrder.LITTLE_ENDIAN);
+		d.order(ByteOrder.LITTLE_ENDIAN);
+		if ((long) width * height <= parallelThreshold || pool.getParallelism() < 2) {
+			renderRows(s, d, alpha, 0, height);
+			return;
+		}
+
+		// split the frame into bands of rows, a few bands per thread to balance the load
+		final int numBands = Math.min(height, pool.getParallelism() * 4);
+		final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(numBands);
+		for (int i = 0; i < numBands; i++) {
+			final int y0 = (int) ((long) height * i / numBands);
+			final int y1 = (int) ((long) height * (i + 1) / numBands);
+			tasks.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					renderRows(s.duplicate().order(ByteOrder.LITTLE_ENDIAN),
+							d.duplicate().order(ByteOrder.LITTLE_ENDIAN), alpha, y0, y1);
+				}
+			});
+		}
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+	}
+
+	/**
+	 * Renders a raw frame into a new RGBA array.
+	 *
+	 * @param src the raw frame, e.g., from {@link ND2SDK#getSeqBytes(int)}
+	 * @return the RGBA bytes of the image
+	 */
+	public byte[] render(final ByteBuffer src) {
+		final byte[] rgba = new byte[width * height * 4];
+		render(src, ByteBuffer.wrap(rgba), true);
+		return rgba;
+	}
+
+	/**
+	 * Renders the rows [y0, y1) of the frame.
+	 */
+	private void renderRows(final ByteBuffer src, final ByteBuffer dst, final boolean alpha, final int y0, final int y1) {
+		final Scratch t = scratch.get();
+		final IntBuffer dstInts = alpha ? dst.asIntBuffer() : null;
+		for (int y = y0; y < y1; y++) {
+			unpackRow(src, y * lineBytes, t);
+
+			Arrays.fill(t.red, 0, width, 0f);
+			Arrays.fill(t.green, 0, width, 0f);
+			Arrays.fill(t.blue, 0, width, 0f);
+			for (int c = 0; c < components; c++) {
+				final int color = colors[c];
+				final float r = (color & 0xFF) / 255f;
+				final float g = ((color >> 8) & 0xFF) / 255f;
+				final float b = ((color >> 16) & 0xFF) / 255f;
+				if (VECTORIZED) {
+					FrameRendererVector.composite(t.values[c], width, offsets[c], scales[c], r, g, b, t.red, t.green, t.blue);
+				} else {
+					composite(t.values[c], width, offsets[c], scales[c], r, g, b, t.red, t.green, t.blue);
+				}
+			}
+
+			if (alpha) {
+				if (VECTORIZED) {
+					FrameRendererVector.packRGBA(t.red, t.green, t.blue, width, t.packed);
+				} else {
+					packRGBA(t.red, t.green, t.blue, width, t.packed);
+				}
+				dstInts.position(y * width);
+				dstInts.put(t.packed, 0, width);
+			} else {
+				int i = y * width * 3;
+				for (int x = 0; x < width; x++) {
+					dst.put(i++, toByte(t.red[x]));
+					dst.put(i++, toByte(t.green[x]));
+					dst.put(i++, toByte(t.blue[x]));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Converts a line of the raw frame into one float array per component.
+	 */
+	private void unpackRow(final ByteBuffer src, final int offset, final Scratch t) {
+		final int n = width * components;
+		src.position(offset);
+		switch (bpc) {
+			case 8:
+				src.get(t.bytes, 0, n);
+				if (components == 1) {
+					final float[] v = t.values[0];
+					for (int x = 0; x < width; x++) v[x] = t.bytes[x] & 0xFF;
+				} else {
+					for (int c = 0; c < components; c++) {
+						final float[] v = t.values[c];
+						for (int x = 0, i = c; x < width; x++, i += components) v[x] = t.bytes[i] & 0xFF;
+					}
+				}
+				break;
+			case 16:
+				src.asShortBuffer().get(t.shorts, 0, n);
+				if (components == 1) {
+					final float[] v = t.values[0];
+					for (int x = 0; x < width; x++) v[x] = t.shorts[x] & 0xFFFF;
+				} else {
+					for (int c = 0; c < components; c++) {
+						final float[] v = t.values[c];
+						for (int x = 0, i = c; x < width; x++, i += components) v[x] = t.shorts[i] & 0xFFFF;
+					}
+				}
+				break;
+			default:
+				if (components == 1) {
+					src.asFloatBuffer().get(t.values[0], 0, width);
+				} else {
+					src.asFloatBuffer().get(t.floats, 0, n);
+					for (int c = 0; c < components; c++) {
+						final float[] v = t.values[c];
+						for (int x = 0, i = c; x < width; x++, i += components) v[x] = t.floats[i];
+					}
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Scales the values to [0, 255] and adds the colored values to the red, green and blue sums.
+	 */
+	static void composite(final float[] values, final int n, final float offset, final float scale,
+			final float r, final float g, final float b, final float[] red, final float[] green, final float[] blue) {
+		for (int x = 0; x < n; x++) {
+			final float v = Math.min(Math.max((values[x] - offset) * scale, 0f), 255f);
+			red[x] += v * r;
+			green[x] += v * g;
+			blue[x] += v * b;
+		}
+	}
+
+	/**
+	 * Packs the red, green and blue sums into little-endian RGBA ints.
+	 */
+	static void packRGBA(final float[] red, final float[] green, final float[] blue, final int n, final int[] packed) {
+		for (int x = 0; x < n; x++) {
+			packed[x] = 0xFF000000
+					| (toInt(blue[x]) << 16)
+					| (toInt(green[x]) << 8)
+					| toInt(red[x]);
+		}
+	}
+
+	private static int toInt(final float v) {
+		return (int) (Math.min(v, 255f) + 0.5f);
+	}
+
+	private static byte toByte(final float v) {
+		return (byte) toInt(v);
+	}
+
+	private static boolean vectorApiAvailable() {
+		try {
+			return FrameRendererVector.SPECIES.length() > 1;
+		} catch (Throwable t) {
+			// the jdk.incubator.vector module was not added to the JVM
+			return false;
+		}
+	}
+
+	/** The arrays that a thread uses to render a row */
+	private static class Scratch {
+		final byte[] bytes;
+		final short[] shorts;
+		final float[] floats;
+		final float[][] values;
+		final float[] red, green, blue;
+		final int[] packed;
+
+		Scratch(final int width, final int components, final int bpc) {
+			bytes = bpc == 8 ? new byte[width * components] : null;
+			shorts = bpc == 16 ? new short[width * components] : null;
+			floats = bpc == 32 && components > 1 ? new float[width * components] : null;
+			values = new float[components][width];
+			red = new float[width];
+			green = new float[width];
+			blue = new float[width];
+			packed = new int[width];
+		}
+	}
+}
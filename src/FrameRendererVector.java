@@ -0,0 +1,71 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The {@code jdk.incubator.vector} implementation of the {@link FrameRenderer}
+ * arithmetic. This class is only loaded if the module is available, so the
+ * {@link FrameRenderer} can fall back to its scalar implementation.
+ */
+class FrameRendererVector {
+
+	/** The preferred float species of this CPU */
+	static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	/** The int species with the same number of lanes as {@link #SPECIES} */
+	private static final VectorSpecies<Integer> INT_SPECIES = VectorSpecies.of(int.class, SPECIES.vectorShape());
+
+	/**
+	 * See {@link FrameRenderer#composite}
+	 */
+	static void composite(final float[] values, final int n, final float offset, final float scale,
+			final float r, final float g, final float b, final float[] red, final float[] green, final float[] blue) {
+		final FloatVector vr = FloatVector.broadcast(SPECIES, r);
+		final FloatVector vg = FloatVector.broadcast(SPECIES, g);
+		final FloatVector vb = FloatVector.broadcast(SPECIES, b);
+		final int bound = SPECIES.loopBound(n);
+		int x = 0;
+		for (; x < bound; x += SPECIES.length()) {
+			final FloatVector v = FloatVector.fromArray(SPECIES, values, x)
+					.sub(offset).mul(scale).max(0f).min(255f);
+			v.fma(vr, FloatVector.fromArray(SPECIES, red, x)).intoArray(red, x);
+			v.fma(vg, FloatVector.fromArray(SPECIES, green, x)).intoArray(green, x);
+			v.fma(vb, FloatVector.fromArray(SPECIES, blue, x)).intoArray(blue, x);
+		}
+		for (; x < n; x++) {
+			final float v = Math.min(Math.max((values[x] - offset) * scale, 0f), 255f);
+			red[x] += v * r;
+			green[x] += v * g;
+			blue[x] += v * b;
+		}
+	}
+
+	/**
+	 * See {@link FrameRenderer#packRGBA}
+	 */
+	static void packRGBA(final float[] red, final float[] green, final float[] blue, final int n, final int[] packed) {
+		final int bound = SPECIES.loopBound(n);
+		int x = 0;
+		for (; x < bound; x += SPECIES.length()) {
+			final IntVector r = toInt(FloatVector.fromArray(SPECIES, red, x));
+			final IntVector g = toInt(FloatVector.fromArray(SPECIES, green, x));
+			final IntVector b = toInt(FloatVector.fromArray(SPECIES, blue, x));
+			b.lanewise(VectorOperators.LSHL, 16)
+					.or(g.lanewise(VectorOperators.LSHL, 8))
+					.or(r)
+					.or(0xFF000000)
+					.intoArray(packed, x);
+		}
+		for (; x < n; x++) {
+			packed[x] = 0xFF000000
+					| ((int) (Math.min(blue[x], 255f) + 0.5f) << 16)
+					| ((int) (Math.min(green[x], 255f) + 0.5f) << 8)
+					| (int) (Math.min(red[x], 255f) + 0.5f);
+		}
+	}
+
+	private static IntVector toInt(final FloatVector v) {
+		return (IntVector) v.min(255f).add(0.5f).convertShape(VectorOperators.F2I, INT_SPECIES, 0);
+	}
+}
@@ -0,0 +1,206 @@
+import java.util.List;
+
+/**
+ * The min, max, mean and histogram of every component in a frame (or, see
+ * {@link #aggregate(List)}, in several frames).
+ *
+ * <p>For integer images the histogram of a component covers the values
+ * [0, 2<sup>uiBpcSignificant</sup>). For float images it covers the [min, max]
+ * range of the frame, widened so that the histogram can be filled in the same pass
+ * as the min and max, and the pixels that are NaN or infinite are not included in
+ * the statistics.</p>
+ *
+ * @see ND2SDK#enableStatistics(int)
+ */
+public class FrameStatistics {
+
+	/** The number of components */
+	public final int numComponents;
+
+	/** The number of bins in the histogram of each component */
+	public final int numBins;
+
+	/** The number of pixels that were included */
+	public final long numPixels;
+
+	/** The minimum value of each component */
+	public final double[] min;
+
+	/** The maximum value of each component */
+	public final double[] max;
+
+	/** The mean value of each component (of the pixels in its histogram) */
+	public final double[] mean;
+
+	/** The lower edge of the first bin of each component */
+	public final double[] histMin;
+
+	/** The upper edge of the last bin of each component */
+	public final double[] histMax;
+
+	/** The histogram of each component, {@code histogram[component][bin]} */
+	public final long[][] histogram;
+
+	/**
+	 * Creates the statistics from the values that were returned by
+	 * {@link ND2SDK#Lim_FileGetImageDataStats}.
+	 *
+	 * @param numPixels the number of pixels in the frame
+	 * @param min the minimum value of each component
+	 * @param max the maximum value of each component
+	 * @param sum the sum of the values of each component
+	 * @param histRange the {min, max} pair of the histogram of each component
+	 * @param hist the histograms of all components, one after the other
+	 */
+	FrameStatistics(final long numPixels, final double[] min, final double[] max, final double[] sum,
+			final double[] histRange, final long[] hist) {
+		this.numComponents = min.length;
+		this.numBins = hist.length / numComponents;
+		this.numPixels = numPixels;
+		this.min = min;
+		this.max = max;
+		this.mean = new double[numComponents];
+		this.histMin = new double[numComponents];
+		this.histMax = new double[numComponents];
+		this.histogram = new long[numComponents][numBins];
+		for (int c = 0; c < numComponents; c++) {
+			histMin[c] = histRange[2 * c];
+			histMax[c] = histRange[2 * c + 1];
+			System.arraycopy(hist, c * numBins, histogram[c], 0, numBins);
+			final long count = count(c);
+			mean[c] = count > 0 ? sum[c] / count : 0.0;
+		}
+	}
+
+	private FrameStatistics(final int numComponents, final int numBins, final long numPixels) {
+		this.numComponents = numComponents;
+		this.numBins = numBins;
+		this.numPixels = numPixels;
+		this.min = new double[numComponents];
+		this.max = new double[numComponents];
+		this.mean = new double[numComponents];
+		this.histMin = new double[numComponents];
+		this.histMax = new double[numComponents];
+		this.histogram = new long[numComponents][numBins];
+	}
+
+	/**
+	 * Returns the value below which a percentage of the pixels of a component lie.
+	 * The value is interpolated within a histogram bin.
+	 *
+	 * @param component the component index
+	 * @param percent the percentage, between 0 and 100
+	 * @return the percentile
+	 */
+	public double percentile(final int component, final double percent) {
+		final long[] h = histogram[component];
+		final long total = count(component);
+		if (total == 0) return min[component];
+
+		final double target = Math.min(Math.max(percent, 0.0), 100.0) * 0.01 * total;
+		final double binWidth = (histMax[component] - histMin[component]) / numBins;
+		long cumulative = 0;
+		for (int i = 0; i < numBins; i++) {
+			if (h[i] > 0 && cumulative + h[i] >= target) {
+				final double fraction = (target - cumulative) / h[i];
+				final double value = histMin[component] + (i + fraction) * binWidth;
+				return Math.min(Math.max(value, min[component]), max[component]);
+			}
+			cumulative += h[i];
+		}
+		return max[component];
+	}
+
+	/**
+	 * Returns the number of pixels in the histogram of a component, i.e., the pixels
+	 * whose value is finite.
+	 *
+	 * @param component the component index
+	 */
+	public long count(final int component) {
+		long total = 0;
+		for (long count : histogram[component]) total += count;
+		return total;
+	}
+
+	/**
+	 * Returns the display range of every component.
+	 *
+	 * @param lowPercent the percentage of the pixels that are displayed as black (e.g., 0.1)
+	 * @param highPercent the percentage of the pixels that are not saturated (e.g., 99.9)
+	 * @return the {min, max} display range of each component
+	 */
+	public double[][] displayRanges(final double lowPercent, final double highPercent) {
+		final double[][] ranges = new double[numComponents][2];
+		for (int c = 0; c < numComponents; c++) {
+			ranges[c][0] = percentile(c, lowPercent);
+			ranges[c][1] = percentile(c, highPercent);
+		}
+		return ranges;
+	}
+
+	/**
+	 * Combines the statistics of several frames. The frames must have the same number
+	 * of components and bins. If the histograms of a component do not cover the same
+	 * range (float images) then the counts are re-binned into the combined range.
+	 *
+	 * @param frames the statistics of each frame
+	 * @return the combined statistics
+	 */
+	public static FrameStatistics aggregate(final List<FrameStatistics> frames) {
+		if (frames.isEmpty()) throw new IllegalArgumentException("No frame statistics to aggregate");
+
+		final FrameStatistics first = frames.get(0);
+		long numPixels = 0;
+		for (FrameStatistics f : frames) {
+			if (f.numComponents != first.numComponents || f.numBins != first.numBins)
+				throw new IllegalArgumentException("The frame statistics have a different number of components or bins");
+			numPixels += f.numPixels;
+		}
+
+		final FrameStatistics all = new FrameStatistics(first.numComponents, first.numBins, numPixels);
+		for (int c = 0; c < all.numComponents; c++) {
+			all.min[c] = Double.POSITIVE_INFINITY;
+			all.max[c] = Double.NEGATIVE_INFINITY;
+			all.histMin[c] = Double.POSITIVE_INFINITY;
+			all.histMax[c] = Double.NEGATIVE_INFINITY;
+			double sum = 0.0;
+			long count = 0;
+			for (FrameStatistics f : frames) {
+				final long n = f.count(c);
+				if (n == 0) continue;
+				all.min[c] = Math.min(all.min[c], f.min[c]);
+				all.max[c] = Math.max(all.max[c], f.max[c]);
+				all.histMin[c] = Math.min(all.histMin[c], f.histMin[c]);
+				all.histMax[c] = Math.max(all.histMax[c], f.histMax[c]);
+				sum += f.mean[c] * n;
+				count += n;
+			}
+			if (count == 0) {
+				all.min[c] = all.max[c] = all.histMin[c] = all.histMax[c] = 0.0;
+				continue;
+			}
+			all.mean[c] = sum / count;
+
+			final long[] h = all.histogram[c];
+			final double range = all.histMax[c] - all.histMin[c];
+			for (FrameStatistics f : frames) {
+				if (f.histMin[c] == all.histMin[c] && f.histMax[c] == all.histMax[c]) {
+					for (int i = 0; i < all.numBins; i++) h[i] += f.histogram[c][i];
+				} else {
+					// put the counts of each bin into the combined bin that contains its center
+					final double binWidth = (f.histMax[c] - f.histMin[c]) / f.numBins;
+					for (int i = 0; i < f.numBins; i++) {
+						if (f.histogram[c][i] == 0) continue;
+						final double center = f.histMin[c] + (i + 0.5) * binWidth;
+						int bin = range > 0 ? (int) ((center - all.histMin[c]) / range * all.numBins) : 0;
+						if (bin >= all.numBins) bin = all.numBins - 1;
+						if (bin < 0) bin = 0;
+						h[bin] += f.histogram[c][i];
+					}
+				}
+			}
+		}
+		return all;
+	}
+}
@@ -0,0 +1,93 @@
+import java.util.Arrays;
+
+/**
+ * A histogram of latencies for {@link LoadHarness}, with a relative precision of
+ * about 1.5% from 1 ns to several hours.
+ *
+ * <p>Every power of 2 is divided into {@link #SUB_BUCKETS} buckets of equal width,
+ * so recording a value is a few integer operations and the memory does not grow
+ * with the number of values.</p>
+ */
+class LatencyHistogram {
+
+	/** The number of buckets in every power of 2 */
+	static final int SUB_BUCKETS = 64;
+
+	private static final int SUB_BITS = 6;
+	private static final int MAX_BITS = 44;
+
+	private final long[] counts = new long[(MAX_BITS - SUB_BITS + 2) * SUB_BUCKETS];
+	private long count = 0;
+	private long max = 0;
+
+	/**
+	 * Records a latency, in nanoseconds.
+	 */
+	synchronized void record(final long nanos) {
+		final long v = Math.max(0, nanos);
+		counts[bucket(v)]++;
+		count++;
+		if (v > max) max = v;
+	}
+
+	/**
+	 * Adds the values of another histogram to this one.
+	 */
+	synchronized void add(final LatencyHistogram other) {
+		synchronized (other) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += other.counts[i];
+			}
+			count += other.count;
+			max = Math.max(max, other.max);
+		}
+	}
+
+	/**
+	 * Removes all values.
+	 */
+	synchronized void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		max = 0;
+	}
+
+	synchronized long count() {
+		return count;
+	}
+
+	/**
+	 * The largest value, in nanoseconds.
+	 */
+	synchronized long max() {
+		return max;
+	}
+
+	/**
+	 * The value, in nanoseconds, that {@code pct} percent of the values are at most
+	 * (the upper edge of its bucket, but not more than the largest value).
+	 */
+	synchronized long percentile(final double pct) {
+		if (count == 0) return 0;
+		final long rank = Math.max(1, (long) Math.ceil(count * pct / 100.0));
+		long n = 0;
+		for (int i = 0; i < counts.length; i++) {
+			n += counts[i];
+			if (n >= rank) return Math.min(max, upperEdge(i));
+		}
+		return max;
+	}
+
+	private static int bucket(final long v) {
+		if (v < SUB_BUCKETS) return (int) v;
+		final int magnitude = Math.min(63 - Long.numberOfLeadingZeros(v), MAX_BITS);
+		final int shift = magnitude - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) Math.min((v >>> shift) - SUB_BUCKETS, SUB_BUCKETS - 1);
+	}
+
+	private static long upperEdge(final int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+		final int shift = bucket / SUB_BUCKETS - 1;
+		return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,359 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a mix of the ways that our applications read ND2 files, with a number of
+ * concurrent clients, and reports the throughput, the latency percentiles, the
+ * growth of the native memory and whether any file handles leaked.
+ *
+ * <p>Every client repeatedly picks one of the operations at random, weighted by the
+ * mix:</p>
+ * <ul>
+ * <li><b>playback</b>: the next time point of the file that the client has open</li>
+ * <li><b>zscrub</b>: a random Z slice of the current time point</li>
+ * <li><b>thumbnails</b>: open a random file, read a 128 x 128 thumbnail of its middle frame and close it</li>
+ * <li><b>export</b>: read a (C, Z, Y, X) volume of the current time point with a {@link VolumeReader}</li>
+ * </ul>
+ * <p>A client opens another random file after every {@code session} operations.
+ * The arguments are {@code key=value} pairs (defaults in brackets):</p>
+ * <pre>
+ * files=a.nd2,b.nd2   the files to read [16 names that only nd2ReadSDKStub.c accepts]
+ * clients=8           the number of concurrent clients
+ * seconds=60          the duration of the run, after the warm up
+ * warmup=5            the warm up, in seconds, that is not measured
+ * mix=playback:4,zscrub:3,thumbnails:2,export:1
+ * session=200         the number of operations before a client opens another file
+ * interval=10         the number of seconds between the progress lines
+ * </pre>
+ * <p>Run it against the stub library, with an injected decode latency, on any
+ * Linux machine, e.g.,</p>
+ * <pre>
+ * ND2STUB_DECODE_USEC=2000 ND2STUB_OPEN_USEC=5000 java -Djava.library.path=. LoadHarness clients=16 seconds=600
+ * </pre>
+ * <p>The memory and the open file descriptors are read from /proc/self, so they are
+ * only reported on Linux. A file handle that leaks shows up as a file descriptor
+ * that is still open after all clients have closed their files.</p>
+ */
+public class LoadHarness {
+
+	/** The operations of a mix */
+	static final String[] OPERATIONS = {"playback", "zscrub", "thumbnails", "export"};
+
+	private static final int PLAYBACK = 0, ZSCRUB = 1, THUMBNAILS = 2, EXPORT = 3;
+
+	private final String[] files;
+	private final int[] weights = new int[OPERATIONS.length];
+	private final int sessionLength;
+	private final LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+	private final AtomicLong[] errors = new AtomicLong[OPERATIONS.length];
+	private final AtomicLong operations = new AtomicLong();
+	private volatile boolean running = true;
+	private volatile String firstError = null;
+
+	/**
+	 * @param files the files to read
+	 * @param mix the weight of every operation, e.g., {@code playback:4,zscrub:3,thumbnails:2,export:1}
+	 * @param sessionLength the number of operations before a client opens another file
+	 */
+	public LoadHarness(final String[] files, final String mix, final int sessionLength) {
+		this.files = files;
+		this.sessionLength = sessionLength;
+		for (String entry : mix.split(",")) {
+			final String[] kv = entry.split(":");
+			final int op = indexOf(kv[0].trim());
+			if (op < 0) throw new IllegalArgumentException("Unknown operation " + kv[0] + " in the mix " + mix);
+			weights[op] = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+		}
+		int total = 0;
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			total += weights[i];
+			histograms[i] = new LatencyHistogram();
+			errors[i] = new AtomicLong();
+		}
+		if (total <= 0) throw new IllegalArgumentException("The mix has no operations: " + mix);
+	}
+
+	public static void main(String[] args) throws Exception {
+		final Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			final int eq = arg.indexOf('=');
+			if (eq < 0) throw new IllegalArgumentException("Arguments are key=value pairs: " + arg);
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		String[] files = options.containsKey("files") ? options.get("files").split(",") : null;
+		if (files == null) {
+			files = new String[16];
+			for (int i = 0; i < files.length; i++) files[i] = String.format("stub-%02d.nd2", i);
+		}
+		final int clients = intOption(options, "clients", 8);
+		final int seconds = intOption(options, "seconds", 60);
+		final int warmup = intOption(options, "warmup", 5);
+		final int interval = intOption(options, "interval", 10);
+		final String mix = options.containsKey("mix") ? options.get("mix") : "playback:4,zscrub:3,thumbnails:2,export:1";
+
+		if (ND2SDK.BACKEND_JNI.equals(ND2SDK.defaultBackendName()) && !ND2SDK.libLoaded)
+			throw new IOException(ND2SDK.libLoadedErrorMsg);
+
+		System.out.println(String.format("%s backend, %d clients, %d files, mix %s, %d s (+%d s warm up), %d cores",
+				ND2SDK.defaultBackendName(), clients, files.length, mix, seconds, warmup,
+				Runtime.getRuntime().availableProcessors()));
+
+		final LoadHarness harness = new LoadHarness(files, mix, intOption(options, "session", 200));
+		harness.run(clients, warmup, seconds, interval);
+	}
+
+	/**
+	 * Runs the clients, prints a progress line every {@code interval} seconds and the
+	 * summary at the end.
+	 */
+	public void run(final int numClients, final int warmupSeconds, final int seconds, final int interval)
+			throws InterruptedException {
+		final long fdsBefore = openFileDescriptors();
+		final List<Thread> clients = new ArrayList<Thread>();
+		for (int i = 0; i < numClients; i++) {
+			final long seed = i;
+			final Thread client = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					new Client(seed).run();
+				}
+			}, "client-" + i);
+			clients.add(client);
+			client.start();
+		}
+
+		// warm up, then measure from a clean slate
+		Thread.sleep(warmupSeconds * 1000L);
+		for (LatencyHistogram h : histograms) h.reset();
+		for (AtomicLong e : errors) e.set(0);
+		operations.set(0);
+		System.gc();
+		final long rssStart = residentBytes(), directStart = directBytes();
+		final long start = System.nanoTime();
+
+		System.out.println(String.format("%8s %10s %10s %10s %10s %8s", "time [s]", "ops/s", "RSS [MB]", "direct [MB]", "heap [MB]", "open fds"));
+		final List<double[]> rssSamples = new ArrayList<double[]>();
+		long lastOps = 0, lastTime = start;
+		while (System.nanoTime() - start < seconds * 1000000000L) {
+			Thread.sleep(Math.min(interval * 1000L, Math.max(1, seconds * 1000L - (System.nanoTime() - start) / 1000000)));
+			final long now = System.nanoTime(), ops = operations.get();
+			final long rss = residentBytes();
+			rssSamples.add(new double[] {(now - start) * 1e-9, rss});
+			System.out.println(String.format("%8.0f %10.1f %10.1f %10.1f %10.1f %8d", (now - start) * 1e-9,
+					(ops - lastOps) / ((now - lastTime) * 1e-9), rss * 1e-6, directBytes() * 1e-6,
+					(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) * 1e-6, openFileDescriptors()));
+			lastOps = ops;
+			lastTime = now;
+		}
+		final double elapsed = (System.nanoTime() - start) * 1e-9;
+
+		running = false;
+		for (Thread client : clients) client.join();
+		System.gc();
+		report(elapsed, rssStart, directStart, rssSamples, fdsBefore);
+	}
+
+	private void report(final double elapsed, final long rssStart, final long directStart,
+			final List<double[]> rssSamples, final long fdsBefore) {
+		System.out.println();
+		System.out.println(String.format("%-10s %10s %10s %10s %10s %10s %10s %8s",
+				"operation", "count", "ops/s", "p50 [ms]", "p99 [ms]", "p999 [ms]", "max [ms]", "errors"));
+		final LatencyHistogram all = new LatencyHistogram();
+		long numErrors = 0;
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			if (weights[i] == 0) continue;
+			print(OPERATIONS[i], histograms[i], elapsed, errors[i].get());
+			all.add(histograms[i]);
+			numErrors += errors[i].get();
+		}
+		print("all", all, elapsed, numErrors);
+		if (firstError != null) System.out.println("first error: " + firstError);
+
+		// the growth of the resident memory, as the slope of a line fit to the samples
+		final long rssEnd = residentBytes(), fdsAfter = openFileDescriptors();
+		System.out.println();
+		if (rssStart >= 0) {
+			System.out.println(String.format("resident memory: %.1f MB -> %.1f MB, trend %+.1f MB/hour",
+					rssStart * 1e-6, rssEnd * 1e-6, slope(rssSamples) * 3600 * 1e-6));
+		}
+		System.out.println(String.format("direct buffers: %.1f MB -> %.1f MB", directStart * 1e-6, directBytes() * 1e-6));
+		if (fdsBefore >= 0) {
+			System.out.println(String.format("open file descriptors: %d before, %d after the clients closed their files (%d leaked)",
+					fdsBefore, fdsAfter, fdsAfter - fdsBefore));
+		}
+	}
+
+	private static void print(final String name, final LatencyHistogram h, final double elapsed, final long numErrors) {
+		System.out.println(String.format("%-10s %10d %10.1f %10.3f %10.3f %10.3f %10.3f %8d", name, h.count(),
+				h.count() / elapsed, h.percentile(50) * 1e-6, h.percentile(99) * 1e-6, h.percentile(99.9) * 1e-6,
+				h.max() * 1e-6, numErrors));
+	}
+
+	/**
+	 * A client, which reads with its own {@link ND2SDK} objects on its own thread.
+	 */
+	private class Client {
+		private final Random random;
+		private ND2SDK session;
+		private VolumeReader exporter;
+		private ByteBuffer volume;
+		private ByteBuffer thumbnail;
+		private int opsLeft = 0;
+		private int t = 0;
+		private int z = 0;
+
+		Client(final long seed) {
+			random = new Random(seed);
+		}
+
+		void run() {
+			try {
+				while (running) {
+					final int op = pick();
+					final long start = System.nanoTime();
+					try {
+						execute(op);
+						histograms[op].record(System.nanoTime() - start);
+					} catch (Exception e) {
+						errors[op].incrementAndGet();
+						if (firstError == null) firstError = OPERATIONS[op] + ": " + e;
+						closeSession();
+					}
+					operations.incrementAndGet();
+				}
+			} finally {
+				closeSession();
+			}
+		}
+
+		private int pick() {
+			int total = 0;
+			for (int w : weights) total += w;
+			int r = random.nextInt(total);
+			for (int i = 0; i < weights.length; i++) {
+				r -= weights[i];
+				if (r < 0) return i;
+			}
+			return 0;
+		}
+
+		private void execute(final int op) throws IOException {
+			if (op == THUMBNAILS) {
+				final ND2SDK nd2 = new ND2SDK();
+				try {
+					nd2.initializeMetadata(files[random.nextInt(files.length)]);
+					final int size = nd2.rectLineSize(128) * 128;
+					if (thumbnail == null || thumbnail.capacity() < size) thumbnail = ByteBuffer.allocateDirect(size);
+					nd2.getSeqScaledBytes(nd2.attribs.uiSequenceCount / 2, 128, 128, ND2SDK.LIMSTRETCH_QUICK, thumbnail);
+				} finally {
+					nd2.deinitialize();
+				}
+				return;
+			}
+
+			if (session == null || opsLeft-- <= 0) openSession();
+			if (op == PLAYBACK) {
+				t = (t + 1) % session.numFrames;
+				session.getSeqBytes(session.getSeqIndexFromCoords(new int[] {t, 0, z, 0}));
+			} else if (op == ZSCRUB) {
+				z = random.nextInt(session.numSlices);
+				session.getSeqBytes(session.getSeqIndexFromCoords(new int[] {t, 0, z, 0}));
+			} else {
+				if (exporter == null) exporter = new VolumeReader(session, 2);
+				final VolumeReader.Ranges ranges = new VolumeReader.Ranges().t(t, 1).p(0, 1);
+				final long size = exporter.volumeBytes(ranges, VolumeReader.LAYOUT_CZYX);
+				if (size > Integer.MAX_VALUE) throw new IOException("The volume is larger than 2 GB");
+				if (volume == null || volume.capacity() < size) volume = ByteBuffer.allocateDirect((int) size);
+				exporter.readVolume(ranges, VolumeReader.LAYOUT_CZYX, volume);
+			}
+		}
+
+		private void openSession() throws IOException {
+			closeSession();
+			session = new ND2SDK();
+			session.initialize(files[random.nextInt(files.length)]);
+			opsLeft = sessionLength;
+			t = random.nextInt(session.numFrames);
+			z = random.nextInt(session.numSlices);
+		}
+
+		private void closeSession() {
+			if (exporter != null) exporter.close();
+			exporter = null;
+			if (session != null) session.deinitialize();
+			session = null;
+		}
+	}
+
+	private static int indexOf(final String operation) {
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			if (OPERATIONS[i].equalsIgnoreCase(operation)) return i;
+		}
+		return -1;
+	}
+
+	private static int intOption(final Map<String, String> options, final String key, final int value) {
+		return options.containsKey(key) ? Integer.parseInt(options.get(key)) : value;
+	}
+
+	/**
+	 * The least-squares slope of {y} over {x}, for the {x, y} samples.
+	 */
+	private static double slope(final List<double[]> samples) {
+		if (samples.size() < 2) return 0;
+		double sx = 0, sy = 0, sxx = 0, sxy = 0;
+		for (double[] s : samples) {
+			sx += s[0];
+			sy += s[1];
+			sxx += s[0] * s[0];
+			sxy += s[0] * s[1];
+		}
+		final int n = samples.size();
+		final double d = n * sxx - sx * sx;
+		return d == 0 ? 0 : (n * sxy - sx * sy) / d;
+	}
+
+	/**
+	 * The resident memory of the process (Java heap and native memory), or -1 if it is not known.
+	 */
+	static long residentBytes() {
+		try {
+			for (String line : Files.readAllLines(new File("/proc/self/status").toPath())) {
+				if (line.startsWith("VmRSS:")) {
+					return 1024 * Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+				}
+			}
+		} catch (IOException e) {
+			// not Linux
+		}
+		return -1;
+	}
+
+	/**
+	 * The memory of the direct ByteBuffers.
+	 */
+	static long directBytes() {
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if ("direct".equals(pool.getName())) return pool.getMemoryUsed();
+		}
+		return -1;
+	}
+
+	/**
+	 * The number of open file descriptors of the process, or -1 if it is not known.
+	 */
+	static long openFileDescriptors() {
+		final String[] fds = new File("/proc/self/fd").list();
+		return fds == null ? -1 : fds.length;
+	}
+}
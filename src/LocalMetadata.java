@@ -0,0 +1,19 @@
+/** 
+ * The LIMLOCALMETADATA struct found in nd2ReadSDK.h
+ * <pre>
+ * double dTimeMSec;   // Relative time msec from the first
+ * double dXPos;       // Stage XPos
+ * double dYPos;       // Stage YPos
+ * double dZPos;       // Stage ZPos
+ * </pre>  
+ */
+class LocalMetadata {
+	/** Relative time msec from the first */
+	double dTimeMSec;
+	/** Stage XPos */
+	double dXPos;
+	/** Stage YPos */
+	double dYPos;
+	/** Stage ZPos */
+	double dZPos;
+}
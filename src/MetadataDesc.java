@@ -0,0 +1,47 @@
+/** 
+ * The LIMMETADATA_DESC struct found in nd2ReadSDK.h 
+ * <pre>
+ * double dTimeStart;          // Absolute Time in JDN
+ * double dAngle;              // Camera Angle
+ * double dCalibration;        // um/px (0.0 = uncalibrated)
+ * double dAspect;             // pixel aspect (always 1.0)
+ * String wszObjectiveName;    // The name of the objective
+ * double dObjectiveMag;       // Optional additional information
+ * double dObjectiveNA;        // dCalibration takes into accont all these
+ * double dRefractIndex1;
+ * double dRefractIndex2;
+ * double dPinholeRadius;
+ * double dZoom;
+ * double dProjectiveMag;
+ * int uiImageType;            // 0 (normal), 1 (spectral)
+ * int uiPlaneCount;           // Number of logical planes (uiPlaneCount <= uiComponentCount)
+ * int uiComponentCount;       // Number of physical components (same as uiComp in LIMFILEATTRIBUTES)
+ * {@link PicturePlaneDesc}[] pPlanes;
+ * </pre>
+ */
+class MetadataDesc {
+	/** Absolute Time in JDN */
+	double dTimeStart;
+	/** Camera Angle */
+	double dAngle;
+	/** um/px (0.0 = uncalibrated) */
+	double dCalibration; 
+	/** pixel aspect (always 1.0) */
+	double dAspect;
+	/** The name of the objective */
+	String wszObjectiveName;
+	double dObjectiveMag;       // Optional additional information
+	double dObjectiveNA;        // dCalibration takes into account all these
+	double dRefractIndex1;
+	double dRefractIndex2;
+	double dPinholeRadius;
+	double dZoom;
+	double dProjectiveMag;
+	/** 0 (normal), 1 (spectral) */
+	int uiImageType; 
+	/** Number of logical planes (uiPlaneCount <= uiComponentCount) */
+	int uiPlaneCount; 
+	/** Number of physical components (same as uiComp in {@link Attributes}) */
+	int uiComponentCount;       //
+	PicturePlaneDesc[] pPlanes;
+}
@@ -0,0 +1,59 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The calls into the nd2ReadSDK library that {@link ND2SDK} is built on.
+ *
+ * <p>{@link ND2SDK} itself implements this interface with its JNI native methods
+ * (ND2SDK.cpp) and {@link ND2SDKForeign} implements it by calling the library
+ * directly with {@code java.lang.foreign}. The methods have the same meaning as
+ * the native methods of the same name in {@link ND2SDK}.</p>
+ *
+ * <p>An instance holds the state of one open file (the {@link Picture} and the
+ * {@link Experiment}) and is used by one {@link ND2SDK} object.</p>
+ */
+interface ND2Backend {
+
+	/** See {@link ND2SDK#Lim_FileOpenForRead(String)} */
+	int Lim_FileOpenForRead(String filename);
+
+	/** See {@link ND2SDK#Lim_FileClose(int)} */
+	int Lim_FileClose(int hFile);
+
+	/** See {@link ND2SDK#Lim_FileGetAttributes(int, Attributes)} */
+	int Lim_FileGetAttributes(int hFile, Attributes pFileAttributes);
+
+	/** See {@link ND2SDK#Lim_FileGetMetadata(int, MetadataDesc)} */
+	int Lim_FileGetMetadata(int hFile, MetadataDesc pFileMetadata);
+
+	/** See {@link ND2SDK#Lim_FileGetTextinfo(int, TextInfo)} */
+	int Lim_FileGetTextinfo(int hFile, TextInfo pFileTextinfo);
+
+	/** See {@link ND2SDK#Lim_FileGetExperiment(int, Experiment)} */
+	int Lim_FileGetExperiment(int hFile, Experiment pFileExperiment);
+
+	/** See {@link ND2SDK#Lim_FileGetBinaryDescriptors(int, Binaries)} */
+	int Lim_FileGetBinaryDescriptors(int hFile, Binaries pBinaries);
+
+	/** See {@link ND2SDK#Lim_InitPicture(Picture, int, int, int, int)} */
+	int Lim_InitPicture(Picture pPicture, int width, int height, int bpc, int components);
+
+	/** See {@link ND2SDK#Lim_DestroyPicture()} */
+	void Lim_DestroyPicture();
+
+	/** See {@link ND2SDK#Lim_GetSeqIndexFromCoords(int[])} */
+	int Lim_GetSeqIndexFromCoords(int[] coords);
+
+	/** See {@link ND2SDK#Lim_GetCoordsFromSeqIndex(int)} */
+	int[] Lim_GetCoordsFromSeqIndex(int uiSeqIdx);
+
+	/** See {@link ND2SDK#Lim_FileGetImageData(int, int, ByteBuffer, LocalMetadata)} */
+	int Lim_FileGetImageData(int hFile, int uiSeqIndex, ByteBuffer buffer, LocalMetadata pImgInfo);
+
+	/** See {@link ND2SDK#Lim_FileGetImageRectData(int, int, int, int, int, int, int, int, ByteBuffer, int, int, LocalMetadata)} */
+	int Lim_FileGetImageRectData(int hFile, int uiSeqIndex, int uiDstTotalW, int uiDstTotalH, int uiDstX, int uiDstY,
+			int uiDstW, int uiDstH, ByteBuffer buffer, int uiDstLineSize, int iStretchMode, LocalMetadata pImgInfo);
+
+	/** See {@link ND2SDK#Lim_FileGetImageDataStats(int, int, ByteBuffer, LocalMetadata, int, double[], double[], double[], double[], long[])} */
+	int Lim_FileGetImageDataStats(int hFile, int uiSeqIndex, ByteBuffer buffer, LocalMetadata pImgInfo,
+			int bpcSignificant, double[] min, double[] max, double[] sum, double[] histRange, long[] histogram);
+}
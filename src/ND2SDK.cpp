@@ -12,12 +12,42 @@
 //
 
 #include <jni.h>
+#include <cmath>
 #include <iostream>
+#include <cstring>
+#include <map>
+#include <mutex>
 #include "ND2SDK.h"
 #include "nd2ReadSDK.h"
 
-LIMPICTURE cPicture;
-LIMEXPERIMENT cExperiment;
+// The picture and experiment structures belong to a file handle (and not to
+// the process) so that several ND2 files can be read at the same time
+struct HandleState {
+    LIMPICTURE cPicture;
+    LIMEXPERIMENT cExperiment;
+    bool pictureInitialized;
+};
+
+std::map<LIMFILEHANDLE, HandleState*> handleStates;
+std::mutex handleStatesLock;
+
+// Returns the state of the file handle that is stored in the hFile field of the ND2SDK object
+HandleState* getHandleState(JNIEnv *env, jobject obj) {
+    jfieldID hFileID = env->GetFieldID(env->GetObjectClass(obj), "hFile", "I");
+    LIMFILEHANDLE handle = env->GetIntField(obj, hFileID);
+    std::lock_guard<std::mutex> lock(handleStatesLock);
+    std::map<LIMFILEHANDLE, HandleState*>::iterator it = handleStates.find(handle);
+    return it == handleStates.end() ? NULL : it->second;
+}
+
+// Returns the state of the file handle or throws an IllegalStateException if the handle is not open
+HandleState* requireHandleState(JNIEnv *env, jobject obj) {
+    HandleState *state = getHandleState(env, obj);
+    if (state == NULL) {
+        env->ThrowNew(env->FindClass("java/lang/IllegalStateException"), "An ND2 file has not been opened");
+    }
+    return state;
+}
 
 // Implementation of Lim_FileOpenForRead()
 JNIEXPORT jint JNICALL Java_ND2SDK_Lim_1FileOpenForRead(JNIEnv *env, jobject obj, jstring filename) {
@@ -37,11 +67,35 @@ JNIEXPORT jint JNICALL Java_ND2SDK_Lim_1FileOpenForRead(JNIEnv *env, jobject obj
     env->ReleaseStringUTFChars(filename, raw);
     delete[] wc;
 
+    // allocate the state for this file handle
+    if (lmf_handle != 0) {
+        HandleState *state = new HandleState();
+        state->pictureInitialized = false;
+        std::lock_guard<std::mutex> lock(handleStatesLock);
+        handleStates[lmf_handle] = state;
+    }
+
     return lmf_handle;
 }
 
 // Implementation of Lim_FileClose()
 JNIEXPORT jint JNICALL Java_ND2SDK_Lim_1FileClose(JNIEnv *env, jobject obj, jint hFile) {
+
+    // release the state for this file handle
+    HandleState *state = NULL;
+    {
+        std::lock_guard<std::mutex> lock(handleStatesLock);
+        std::map<LIMFILEHANDLE, HandleState*>::iterator it = handleStates.find(hFile);
+        if (it != handleStates.end()) {
+            state = it->second;
+            handleStates.erase(it);
+        }
+    }
+    if (state != NULL) {
+        if (state->pictureInitialized) Lim_DestroyPicture(&state->cPicture);
+        delete state;
+    }
+
     return Lim_FileClose( hFile );
 }
 
@@ -247,11 +301,16 @@ JNIEXPORT jint JNICALL Java_ND2SDK_Lim_1FileGetTextinfo(JNIEnv *env, jobject obj
 // Implementation of Lim_FileGetExperiment
 JNIEXPORT jint JNICALL Java_ND2SDK_Lim_1FileGetExperiment(JNIEnv *env, jobject obj, jint handle, jobject jExperiment) {
 
+    LIMEXPERIMENT cExperiment;
     jint ret = Lim_FileGetExperiment(handle, &cExperiment);
 
     // if the call was successful then update the values of the fields in jExperiment
     if (ret == 0) {
 
+        // keep a copy for Lim_GetSeqIndexFromCoords and Lim_GetCoordsFromSeqIndex
+        HandleState *state = getHandleState(env, obj);
+        if (state != NULL) state->cExperiment = cExperiment;
+
         // get the class reference for the jExperiment object
         jclass clazz = env->GetObjectClass(jExperiment);
 
@@ -351,8 +410,14 @@ JNIEXPORT jint JNICALL Java_ND2SDK_Lim_1FileGetBinaryDescriptors(JNIEnv *env, jo
 // Implementation of Lim_InitPicture
 JNIEXPORT jint JNICALL Java_ND2SDK_Lim_1InitPicture(JNIEnv *env, jobject obj, jobject jPicture, jint width, jint height, jint bpc, jint components) {
 
+    HandleState *state = requireHandleState(env, obj);
+    if (state == NULL) return 0;
+
     // returns the number of bytes per picture
-    jint pictureSize = Lim_InitPicture(&cPicture, width, height, bpc, components);
+    if (state->pictureInitialized) Lim_DestroyPicture(&state->cPicture);
+    jint pictureSize = Lim_InitPicture(&state->cPicture, width, height, bpc, components);
+    state->pictureInitialized = true;
+    LIMPICTURE &cPicture = state->cPicture;
 
     // get the class reference for the jPicture object
     jclass clazz = env->GetObjectClass(jPicture);
@@ -380,7 +445,11 @@ JNIEXPORT jint JNICALL Java_ND2SDK_Lim_1InitPicture(JNIEnv *env, jobject obj, jo
 
 // Implementation of Lim_DestroyPicture
 JNIEXPORT void JNICALL Java_ND2SDK_Lim_1DestroyPicture(JNIEnv *env, jobject obj) {
-    Lim_DestroyPicture(&cPicture);
+    HandleState *state = getHandleState(env, obj);
+    if (state != NULL && state->pictureInitialized) {
+        Lim_DestroyPicture(&state->cPicture);
+        state->pictureInitialized = false;
+    }
 }
 
 // Implementation of Lim_GetSeqIndexFromCoords
@@ -402,15 +471,21 @@ JNIEXPORT jint JNICALL Java_ND2SDK_Lim_1GetSeqIndexFromCoords(JNIEnv *env, jobje
     }
     env->ReleaseIntArrayElements(jCoords, el, NULL);
 
-    return Lim_GetSeqIndexFromCoords(&cExperiment, pExpCoords);
+    HandleState *state = requireHandleState(env, obj);
+    if (state == NULL) return 0;
+
+    return Lim_GetSeqIndexFromCoords(&state->cExperiment, pExpCoords);
 }
 
 // Implementation of Lim_GetCoordsFromSeqIndex
 JNIEXPORT jintArray JNICALL Java_ND2SDK_Lim_1GetCoordsFromSeqIndex(JNIEnv *env, jobject obj, jint uiSeqIdx) {
 
+    HandleState *state = requireHandleState(env, obj);
+    if (state == NULL) return NULL;
+
     LIMUINT *cCoords = new LIMUINT[4];
 
-    Lim_GetCoordsFromSeqIndex(&cExperiment, uiSeqIdx, cCoords);
+    Lim_GetCoordsFromSeqIndex(&state->cExperiment, uiSeqIdx, cCoords);
 
     jintArray jCoords = env->NewIntArray(4);
     jint *el = env->GetIntArrayElements(jCoords, NULL);
@@ -426,39 +501,280 @@ JNIEXPORT jintArray JNICALL Java_ND2SDK_Lim_1GetCoordsFromSeqIndex(JNIEnv *env,
     return jCoords;
 }
 
+// Copies the values of cImgInfo into the fields of the jImgInfo (LocalMetadata) object
+void setLocalMetadata(JNIEnv *env, jobject jImgInfo, const LIMLOCALMETADATA &cImgInfo) {
+
+    // get the class reference for the jImgInfo object
+    jclass clazz = env->GetObjectClass(jImgInfo);
+
+    // get the field ID's
+    jfieldID dTimeMSecID = env->GetFieldID(clazz, "dTimeMSec", "D");
+    jfieldID dXPosID     = env->GetFieldID(clazz, "dXPos"    , "D");
+    jfieldID dYPosID     = env->GetFieldID(clazz, "dYPos"    , "D");
+    jfieldID dZPosID     = env->GetFieldID(clazz, "dZPos"    , "D");
+
+    // set the new values of the member fields in the jImgInfo object
+    env->SetDoubleField(jImgInfo, dTimeMSecID, cImgInfo.dTimeMSec);
+    env->SetDoubleField(jImgInfo, dXPosID    , cImgInfo.dXPos);
+    env->SetDoubleField(jImgInfo, dYPosID    , cImgInfo.dYPos);
+    env->SetDoubleField(jImgInfo, dZPosID    , cImgInfo.dZPos);
+}
+
 // Implementation of Lim_FileGetImageData
 JNIEXPORT jint JNICALL Java_ND2SDK_Lim_1FileGetImageData(JNIEnv *env, jobject obj, jint handle, jint uiSeqIndex, jobject jByteBuffer, jobject jImgInfo) {
 
+    HandleState *state = requireHandleState(env, obj);
+    if (state == NULL) return LIM_ERR_NOTINITIALIZED;
+    LIMPICTURE &cPicture = state->cPicture;
+
     LIMLOCALMETADATA cImgInfo;
     jint ret = Lim_FileGetImageData(handle, uiSeqIndex, &cPicture, &cImgInfo);
 
     // if the call was successful then fill in the jByteBuffer and the values of the fields in jImgInfo
     if (ret == 0) {
+        setLocalMetadata(env, jImgInfo, cImgInfo);
 
-        // get the class reference for the jImgInfo object
-        jclass clazz = env->GetObjectClass(jImgInfo);
+        // fill in the jByteBuffer
+        jbyte *buf = (jbyte *)env->GetDirectBufferAddress(jByteBuffer);
+        memcpy(buf, cPicture.pImageData, cPicture.uiSize);
+    }
 
-        // get the field ID's
-        jfieldID dTimeMSecID = env->GetFieldID(clazz, "dTimeMSec", "D");
-        jfieldID dXPosID     = env->GetFieldID(clazz, "dXPos"    , "D");
-        jfieldID dYPosID     = env->GetFieldID(clazz, "dYPos"    , "D");
-        jfieldID dZPosID     = env->GetFieldID(clazz, "dZPos"    , "D");
+    return ret;
+}
 
-        // set the new values of the member fields in the jImgInfo object
-        env->SetDoubleField(jImgInfo, dTimeMSecID, cImgInfo.dTimeMSec);
-        env->SetDoubleField(jImgInfo, dXPosID    , cImgInfo.dXPos);
-        env->SetDoubleField(jImgInfo, dYPosID    , cImgInfo.dYPos);
-        env->SetDoubleField(jImgInfo, dZPosID    , cImgInfo.dZPos);
+// Implementation of Lim_FileGetImageRectData
+JNIEXPORT jint JNICALL Java_ND2SDK_Lim_1FileGetImageRectData(JNIEnv *env, jobject obj, jint handle, jint uiSeqIndex, jint uiDstTotalW, jint uiDstTotalH,
+        jint uiDstX, jint uiDstY, jint uiDstW, jint uiDstH, jobject jByteBuffer, jint uiDstLineSize, jint iStretchMode, jobject jImgInfo) {
 
-        // fill in the jByteBuffer
-        jbyte *buf = (jbyte *)env->GetDirectBufferAddress(jByteBuffer);
-        jbyte *p = (jbyte *)cPicture.pImageData;
-        for (int i = 0; i < cPicture.uiSize; i++) {
-            buf[i] = *p;
-            p++;
+    // make sure that the rectangle fits in the jByteBuffer
+    jbyte *buf = (jbyte *)env->GetDirectBufferAddress(jByteBuffer);
+    jlong capacity = env->GetDirectBufferCapacity(jByteBuffer);
+    if (buf == NULL || uiDstW <= 0 || uiDstH <= 0 || capacity < (jlong)uiDstLineSize * uiDstH) {
+        return LIM_ERR_INVALIDARG;
+    }
+
+    LIMLOCALMETADATA cImgInfo;
+    jint ret = Lim_FileGetImageRectData(handle, uiSeqIndex, uiDstTotalW, uiDstTotalH, uiDstX, uiDstY, uiDstW, uiDstH,
+                                        buf, uiDstLineSize, iStretchMode, &cImgInfo);
+
+    // if the call was successful then update the values of the fields in jImgInfo
+    if (ret == 0) {
+        setLocalMetadata(env, jImgInfo, cImgInfo);
+    }
+
+    return ret;
+}
+
+// Accumulates the min, max and sum of every component in a row of pixels
+template <typename T>
+void accumulateRow(const T *row, LIMUINT width, LIMUINT comp, double *min, double *max, double *sum) {
+    for (LIMUINT c = 0; c < comp; c++) {
+        const T *p = row + c;
+        T lo = *p, hi = *p;
+        double s = 0.0;
+        for (LIMUINT x = 0; x < width; x++, p += comp) {
+            const T v = *p;
+            if (v < lo) lo = v;
+            if (v > hi) hi = v;
+            s += v;
+        }
+        if (lo < min[c]) min[c] = lo;
+        if (hi > max[c]) max[c] = hi;
+        sum[c] += s;
+    }
+}
+
+// Adds a row of integer pixels to the histogram of every component. The histogram
+// covers [0, 2^bpc) and values that are out of range are put in the last bin.
+template <typename T>
+void histogramRow(const T *row, LIMUINT width, LIMUINT comp, LIMUINT bpc, jlong *hist, LIMUINT numBins) {
+    const LIMUINT maxValue = (1u << bpc) - 1;
+    const double scale = (double)numBins / (double)(maxValue + 1);
+    for (LIMUINT c = 0; c < comp; c++) {
+        jlong *h = hist + c * numBins;
+        const T *p = row + c;
+        for (LIMUINT x = 0; x < width; x++, p += comp) {
+            LIMUINT v = *p;
+            if (v > maxValue) v = maxValue;
+            h[(LIMUINT)(v * scale)]++;
+        }
+    }
+}
+
+// The range of the histogram of a float component. The min and max of the frame are
+// not known until the last row, so the range starts at the range of the first row and
+// is doubled, by merging pairs of bins, whenever a row has values outside of it.
+struct FloatHistogram {
+    double lo;      // the lower edge of the first bin
+    double width;   // the width of a bin, 0 while all values are equal to lo
+    bool empty;     // no value has been added yet
+};
+
+// Grows the range of a histogram to include [vmin, vmax]
+void growHistogram(FloatHistogram &f, jlong *h, LIMUINT numBins, double vmin, double vmax) {
+    if (f.empty) {
+        f.lo = vmin;
+        f.width = (vmax - vmin) / numBins;
+        f.empty = false;
+        return;
+    }
+    if (f.width == 0) {
+        if (vmin == f.lo && vmax == f.lo) return;
+        // all previous values are equal to f.lo, move them to their bin in the new range
+        const double lo = vmin < f.lo ? vmin : f.lo;
+        const double hi = vmax > f.lo ? vmax : f.lo;
+        const jlong count = h[0];
+        LIMUINT bin = (LIMUINT)((f.lo - lo) / ((hi - lo) / numBins));
+        if (bin >= numBins) bin = numBins - 1;
+        h[0] = 0;
+        h[bin] = count;
+        f.lo = lo;
+        f.width = (hi - lo) / numBins;
+        return;
+    }
+    while (vmax > f.lo + numBins * f.width) {
+        // bin i becomes bin i / 2 of [lo, lo + 2 * numBins * width]
+        for (LIMUINT i = 0; i < numBins; i++) {
+            const jlong count = h[i];
+            h[i] = 0;
+            h[i / 2] += count;
+        }
+        f.width *= 2;
+    }
+    while (vmin < f.lo) {
+        // bin i becomes bin (numBins + i) / 2 of [lo - numBins * width, lo + numBins * width]
+        for (LIMUINT i = numBins; i-- > 0;) {
+            const jlong count = h[i];
+            h[i] = 0;
+            h[(numBins + i) / 2] += count;
+        }
+        f.lo -= numBins * f.width;
+        f.width *= 2;
+    }
+}
+
+// Accumulates the min, max and sum of every component in a row of float pixels and,
+// while the row is still in the cache, adds it to the histogram of every component.
+// Pixels that are NaN or infinite are skipped.
+void accumulateRowFloat(const float *row, LIMUINT width, LIMUINT comp, double *min, double *max, double *sum,
+        FloatHistogram *ranges, jlong *hist, LIMUINT numBins) {
+    for (LIMUINT c = 0; c < comp; c++) {
+        const float *p = row + c;
+        double lo = HUGE_VAL, hi = -HUGE_VAL, s = 0.0;
+        for (LIMUINT x = 0; x < width; x++, p += comp) {
+            const float v = *p;
+            if (!std::isfinite(v)) continue;
+            if (v < lo) lo = v;
+            if (v > hi) hi = v;
+            s += v;
+        }
+        if (lo > hi) continue; // no finite values
+
+        if (lo < min[c]) min[c] = lo;
+        if (hi > max[c]) max[c] = hi;
+        sum[c] += s;
+
+        FloatHistogram &f = ranges[c];
+        jlong *h = hist + c * numBins;
+        growHistogram(f, h, numBins, lo, hi);
+        const double scale = f.width > 0 ? 1.0 / f.width : 0.0;
+        p = row + c;
+        for (LIMUINT x = 0; x < width; x++, p += comp) {
+            const float v = *p;
+            if (!std::isfinite(v)) continue;
+            const double b = (v - f.lo) * scale;
+            LIMUINT bin = b > 0 ? (LIMUINT)b : 0;
+            if (bin >= numBins) bin = numBins - 1;
+            h[bin]++;
+        }
+    }
+}
+
+// Implementation of Lim_FileGetImageDataStats
+JNIEXPORT jint JNICALL Java_ND2SDK_Lim_1FileGetImageDataStats(JNIEnv *env, jobject obj, jint handle, jint uiSeqIndex, jobject jByteBuffer, jobject jImgInfo,
+        jint bpcSignificant, jdoubleArray jMin, jdoubleArray jMax, jdoubleArray jSum, jdoubleArray jHistRange, jlongArray jHistogram) {
+
+    HandleState *state = requireHandleState(env, obj);
+    if (state == NULL) return LIM_ERR_NOTINITIALIZED;
+    LIMPICTURE &cPicture = state->cPicture;
+
+    const LIMUINT comp = cPicture.uiComponents;
+    const LIMUINT numBins = env->GetArrayLength(jHistogram) / (comp > 0 ? comp : 1);
+    if (comp == 0 || numBins == 0 || env->GetArrayLength(jMin) < (jsize)comp || env->GetArrayLength(jMax) < (jsize)comp
+            || env->GetArrayLength(jSum) < (jsize)comp || env->GetArrayLength(jHistRange) < (jsize)(2 * comp)) {
+        return LIM_ERR_INVALIDARG;
+    }
+
+    LIMLOCALMETADATA cImgInfo;
+    jint ret = Lim_FileGetImageData(handle, uiSeqIndex, &cPicture, &cImgInfo);
+    if (ret != 0) return ret;
+
+    setLocalMetadata(env, jImgInfo, cImgInfo);
+
+    const LIMUINT width = cPicture.uiWidth;
+    const LIMUINT height = cPicture.uiHeight;
+    const LIMUINT lineSize = cPicture.uiWidthBytes;
+    const LIMUINT bpc = cPicture.uiBitsPerComp;
+    const jbyte *src = (const jbyte *)cPicture.pImageData;
+    jbyte *dst = (jbyte *)env->GetDirectBufferAddress(jByteBuffer);
+
+    double *min = new double[comp];
+    double *max = new double[comp];
+    double *sum = new double[comp];
+    double *range = new double[2 * comp];
+    jlong *hist = new jlong[comp * numBins]();
+    FloatHistogram *floatRanges = new FloatHistogram[comp];
+    for (LIMUINT c = 0; c < comp; c++) {
+        min[c] = 1e300;
+        max[c] = -1e300;
+        sum[c] = 0.0;
+        floatRanges[c].empty = true;
+    }
+
+    // copy each line into the jByteBuffer and, while it is still in the cache, add it to
+    // the statistics and the histograms. For integer images the histogram range is known
+    // in advance, for float images it grows with the range of the rows (see FloatHistogram).
+    const LIMUINT significant = (bpcSignificant > 0 && bpcSignificant <= 16 && (LIMUINT)bpcSignificant <= bpc) ? bpcSignificant : bpc;
+    for (LIMUINT y = 0; y < height; y++) {
+        const jbyte *line = src + (size_t)y * lineSize;
+        memcpy(dst + (size_t)y * lineSize, line, lineSize);
+        if (bpc == 8) {
+            accumulateRow((const unsigned char *)line, width, comp, min, max, sum);
+            histogramRow((const unsigned char *)line, width, comp, significant, hist, numBins);
+        } else if (bpc == 32) {
+            accumulateRowFloat((const float *)line, width, comp, min, max, sum, floatRanges, hist, numBins);
+        } else {
+            accumulateRow((const unsigned short *)line, width, comp, min, max, sum);
+            histogramRow((const unsigned short *)line, width, comp, significant, hist, numBins);
         }
+    }
 
+    for (LIMUINT c = 0; c < comp; c++) {
+        if (bpc != 32) {
+            range[2 * c] = 0.0;
+            range[2 * c + 1] = (double)(1u << significant);
+        } else if (floatRanges[c].empty) {
+            // no finite values
+            min[c] = max[c] = 0.0;
+            range[2 * c] = range[2 * c + 1] = 0.0;
+        } else {
+            range[2 * c] = floatRanges[c].lo;
+            range[2 * c + 1] = floatRanges[c].lo + numBins * floatRanges[c].width;
+        }
     }
 
+    env->SetDoubleArrayRegion(jMin, 0, comp, min);
+    env->SetDoubleArrayRegion(jMax, 0, comp, max);
+    env->SetDoubleArrayRegion(jSum, 0, comp, sum);
+    env->SetDoubleArrayRegion(jHistRange, 0, 2 * comp, range);
+    env->SetLongArrayRegion(jHistogram, 0, comp * numBins, hist);
+
+    delete[] min;
+    delete[] max;
+    delete[] sum;
+    delete[] range;
+    delete[] hist;
+    delete[] floatRanges;
+
     return ret;
 }
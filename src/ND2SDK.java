@@ -1,20 +1,32 @@
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
 /**
  * JNI implementation of the nd2ReadSDK_v9 library.
  * 
+ * <p>By default the library is called through the JNI bridge (ND2SDK.cpp). The 
+ * {@link ND2SDKForeign java.lang.foreign} backend, which calls the nd2ReadSDK library 
+ * directly, can be selected with the {@link #ND2SDK(String)} constructor or the 
+ * {@value #BACKEND_PROPERTY} system property.</p>
+ * 
  * @author jborbely
  *
  */
-public class ND2SDK {
+public class ND2SDK implements ND2Backend {
 	
 	/** The file handle */
 	public int hFile = 0;
 	
+	/** The path to the ND2 file that is open */
+	public String filename = null;
+	
 	/** The image width, in pixels */
 	public int width = 1;
 	
@@ -30,6 +42,9 @@ public class ND2SDK {
 	/** The number of frames */
 	public int numFrames = 1;
 	
+	/** The number of multipoint positions */
+	public int numPoints = 1;
+	
 	/** See {@link Attributes} */
 	public final Attributes attribs = new Attributes();
 	
@@ -51,6 +66,15 @@ public class ND2SDK {
 	/** See {@link LocalMetadata} */
 	public final LocalMetadata imgInfo = new LocalMetadata();
 	
+	/** The system property that selects the default backend, {@value #BACKEND_JNI} or {@value #BACKEND_FOREIGN} */
+	public static final String BACKEND_PROPERTY = "nd2sdk.backend";
+	
+	/** The name of the JNI backend (ND2SDK.cpp) */
+	public static final String BACKEND_JNI = "jni";
+	
+	/** The name of the {@link ND2SDKForeign java.lang.foreign} backend */
+	public static final String BACKEND_FOREIGN = "foreign";
+	
 	/** Whether the ND2SDK library was successfully loaded. */
 	public static boolean libLoaded = true;
 	
@@ -58,9 +82,27 @@ public class ND2SDK {
 	 * was not successfully loaded. */
 	public static String libLoadedErrorMsg = "";
 
+	/** The calls into the nd2ReadSDK library, either this object (JNI) or an {@link ND2SDKForeign} */
+	private final ND2Backend backend;
+	
 	/** Contains the raw image data for a particular SeqIndex */
 	private ByteBuffer pictureBuffer;
 	
+	/** The number of histogram bins when the statistics mode is enabled, 0 if it is disabled */
+	private int statisticsBins = 0;
+	
+	/** The maximum number of {@link FrameStatistics} that are cached */
+	private int statisticsCacheSize = 4096;
+	
+	/** The {@link FrameStatistics} of the frames that were read, the key is the SeqIndex */
+	private final Map<Integer, FrameStatistics> statisticsCache = new LinkedHashMap<Integer, FrameStatistics>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, FrameStatistics> eldest) {
+			return size() > statisticsCacheSize;
+		}
+	};
+	
 	// #define constants that are in nd2ReadSDK.h
 	public static final int LIMMAXBINARIES = 128;
 	public static final int LIMMAXPICTUREPLANES = 256;
@@ -84,6 +126,53 @@ public class ND2SDK {
 		}
 	}
 
+	/**
+	 * Uses the backend that is selected by the {@value #BACKEND_PROPERTY} system
+	 * property, or the JNI backend if the property is not set.
+	 */
+	public ND2SDK() {
+		this(defaultBackendName());
+	}
+	
+	/**
+	 * Uses the specified backend.
+	 * 
+	 * @param backendName {@value #BACKEND_JNI} or {@value #BACKEND_FOREIGN}
+	 * @throws IllegalArgumentException if the backend name is unknown or the 
+	 * {@link ND2SDKForeign} backend cannot be created
+	 */
+	public ND2SDK(final String backendName) {
+		if (BACKEND_JNI.equals(backendName)) {
+			backend = this;
+		} else if (BACKEND_FOREIGN.equals(backendName)) {
+			// created by reflection so that this class can be used on a JVM without java.lang.foreign
+			try {
+				backend = (ND2Backend) Class.forName("ND2SDKForeign").getConstructor().newInstance();
+			} catch (Throwable t) {
+				final Throwable cause = t.getCause() != null ? t.getCause() : t;
+				throw new IllegalArgumentException("The " + BACKEND_FOREIGN + " backend is not available: " + cause, cause);
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown backend " + backendName);
+		}
+	}
+	
+	/**
+	 * Returns the name of the backend that {@link #ND2SDK()} uses, i.e., the value of
+	 * the {@value #BACKEND_PROPERTY} system property or {@value #BACKEND_JNI}, without
+	 * creating the backend.
+	 */
+	public static String defaultBackendName() {
+		return System.getProperty(BACKEND_PROPERTY, BACKEND_JNI);
+	}
+	
+	/**
+	 * Returns the name of the backend, {@value #BACKEND_JNI} or {@value #BACKEND_FOREIGN}
+	 */
+	public String getBackendName() {
+		return backend == this ? BACKEND_JNI : BACKEND_FOREIGN;
+	}
+	
 	/**
 	 * Opens the ND2 file, reads the {@link Attributes}, {@link MetadataDesc},
 	 * {@link TextInfo}, {@link Experiment}, {@link Binaries} and 
@@ -94,18 +183,46 @@ public class ND2SDK {
 	 * @see #deinitialize()
 	 */
 	public void initialize(final String filename) throws IOException {
-		if (!libLoaded) throw new IOException(libLoadedErrorMsg);
+		initializeMetadata(filename);
+		
+		// initialize the picture
+		backend.Lim_InitPicture(picture, attribs.uiWidth, attribs.uiHeight, attribs.uiBpcInMemory, attribs.uiComp);		
+		pictureBuffer = ByteBuffer.allocateDirect(picture.uiSize);
+		pictureBuffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * Opens the ND2 file and reads the {@link Attributes}, {@link MetadataDesc},
+	 * {@link TextInfo}, {@link Experiment} and {@link Binaries}, but does not 
+	 * initialize the {@link Picture}.
+	 * 
+	 * <p>Use this method when only the {@link #metadata()} is required (for example,
+	 * when cataloging many files) since no memory is allocated for the pixel data. 
+	 * Calling {@link #getSeqBytes(int)} afterwards throws an {@link IOException}.</p>
+	 *  
+	 * @param filename the path to the ND2 file.
+	 * @throws IOException if there was an error in a native method
+	 * @see #deinitialize()
+	 */
+	public void initializeMetadata(final String filename) throws IOException {
+		if (backend == this && !libLoaded) throw new IOException(libLoadedErrorMsg);
 		
 		// open the file
-		hFile = Lim_FileOpenForRead(filename);
+		hFile = backend.Lim_FileOpenForRead(filename);
 		if (hFile == 0) throw new IOException("Cannot open " + filename);
+		this.filename = filename;
 		
 		// read the information about this ND experiment
-		check( Lim_FileGetAttributes(hFile, attribs) );
-		check( Lim_FileGetTextinfo(hFile, textInfo) );
-		check( Lim_FileGetMetadata(hFile, metaDesc) );
-		check( Lim_FileGetExperiment(hFile, experiment) );
-		check( Lim_FileGetBinaryDescriptors(hFile, binaries) );
+		try {
+			check( backend.Lim_FileGetAttributes(hFile, attribs) );
+			check( backend.Lim_FileGetTextinfo(hFile, textInfo) );
+			check( backend.Lim_FileGetMetadata(hFile, metaDesc) );
+			check( backend.Lim_FileGetExperiment(hFile, experiment) );
+			check( backend.Lim_FileGetBinaryDescriptors(hFile, binaries) );
+		} catch (IOException e) {
+			deinitialize();
+			throw e;
+		}
 		
 		// update the public-accessible values
 		width = attribs.uiWidth;
@@ -117,16 +234,14 @@ public class ND2SDK {
 				case LIMLOOP_TIME: 
 					numFrames = exp.uiLoopSize; 
 					break;
+				case LIMLOOP_MULTIPOINT: 
+					numPoints = exp.uiLoopSize; 
+					break;
 				case LIMLOOP_Z: 
 					numSlices = exp.uiLoopSize; 
 					break;
 			}
 		}
-		
-		// initialize the picture
-		Lim_InitPicture(picture, attribs.uiWidth, attribs.uiHeight, attribs.uiBpcInMemory, attribs.uiComp);		
-		pictureBuffer = ByteBuffer.allocateDirect(picture.uiSize);
-		pictureBuffer.order(ByteOrder.LITTLE_ENDIAN);
 	}
 	
 	/**
@@ -138,10 +253,13 @@ public class ND2SDK {
 	 * @see #initialize(String)
 	 */
 	public void deinitialize() {
-		if (!libLoaded || hFile == 0) return;
-		Lim_DestroyPicture();
-		Lim_FileClose(hFile);
+		if ((backend == this && !libLoaded) || hFile == 0) return;
+		if (pictureBuffer != null) backend.Lim_DestroyPicture();
+		backend.Lim_FileClose(hFile);
 		hFile = 0;
+		filename = null;
+		pictureBuffer = null;
+		statisticsCache.clear();
 	}
 	
 	/**
@@ -287,16 +405,248 @@ public class ND2SDK {
 	 * @throws IOException if there was an error in the native method
 	 */
 	public ByteBuffer getSeqBytes(int uiSeqIndex) throws IOException {
+		readFrame(uiSeqIndex);
+		return pictureBuffer;
+	}
+	
+	/**
+	 * Reads a frame into the picture buffer and, in the statistics mode, computes its 
+	 * statistics and puts them in the cache.
+	 * 
+	 * @return the statistics of the frame, or {@code null} if the statistics mode is disabled
+	 */
+	private FrameStatistics readFrame(int uiSeqIndex) throws IOException {
 		if (hFile == 0) 
 			throw new IOException("An ND2 file has not been initialized yet");
 		
+		if (pictureBuffer == null)
+			throw new IOException("The ND2 file was initialized for reading the metadata only");
+		
 		if ( (uiSeqIndex < 0) || (uiSeqIndex >= attribs.uiSequenceCount) )
 			throw new IOException(String.format("Invalid uiSeqIndex value of %d. "
 					+ "Value must be >= 0 and < %d", uiSeqIndex, attribs.uiSequenceCount));
 		
 		pictureBuffer.position(0);
-		check( Lim_FileGetImageData(hFile, uiSeqIndex, pictureBuffer, imgInfo) );
-		return pictureBuffer;
+		if (statisticsBins == 0) {
+			check( backend.Lim_FileGetImageData(hFile, uiSeqIndex, pictureBuffer, imgInfo) );
+			return null;
+		}
+		
+		final int comp = picture.uiComponents;
+		final double[] min = new double[comp];
+		final double[] max = new double[comp];
+		final double[] sum = new double[comp];
+		final double[] histRange = new double[2 * comp];
+		final long[] hist = new long[comp * statisticsBins];
+		check( backend.Lim_FileGetImageDataStats(hFile, uiSeqIndex, pictureBuffer, imgInfo, 
+				attribs.uiBpcSignificant, min, max, sum, histRange, hist) );
+		final FrameStatistics stats = new FrameStatistics((long) picture.uiWidth * picture.uiHeight, 
+				min, max, sum, histRange, hist);
+		statisticsCache.put(uiSeqIndex, stats);
+		return stats;
+	}
+	
+	/**
+	 * Reads a rectangle of the {@link Picture} for the specified sequence index, at the 
+	 * full resolution, into {@code dst}. The lines of the rectangle are 
+	 * {@link #rectLineSize(int) rectLineSize(w)} bytes apart and the pixels have the 
+	 * same format as in {@link #getSeqBytes(int)}.
+	 * 
+	 * <p>This method also updates the values of {@link #imgInfo} for the specified index.</p>
+	 * 
+	 * @param uiSeqIndex the sequence index
+	 * @param x the x offset of the rectangle, in pixels
+	 * @param y the y offset of the rectangle, in pixels
+	 * @param w the width of the rectangle, in pixels
+	 * @param h the height of the rectangle, in pixels
+	 * @param dst a direct ByteBuffer with at least {@code rectLineSize(w) * h} bytes
+	 * @return {@code dst}, in little-endian byte order
+	 * @throws IOException if the rectangle is outside of the image or there was an 
+	 * error in the native method
+	 */
+	public ByteBuffer getSeqRectBytes(int uiSeqIndex, int x, int y, int w, int h, ByteBuffer dst) throws IOException {
+		if (hFile == 0) 
+			throw new IOException("An ND2 file has not been initialized yet");
+		
+		if ( (uiSeqIndex < 0) || (uiSeqIndex >= attribs.uiSequenceCount) )
+			throw new IOException(String.format("Invalid uiSeqIndex value of %d. "
+					+ "Value must be >= 0 and < %d", uiSeqIndex, attribs.uiSequenceCount));
+		
+		if (x < 0 || y < 0 || w < 1 || h < 1 || x + w > attribs.uiWidth || y + h > attribs.uiHeight)
+			throw new IOException(String.format("The rectangle (%d, %d, %d, %d) is not inside of the "
+					+ "%d x %d image", x, y, w, h, attribs.uiWidth, attribs.uiHeight));
+		
+		final int lineSize = rectLineSize(w);
+		if (!dst.isDirect() || dst.capacity() < (long) lineSize * h)
+			throw new IOException("The ByteBuffer must be direct and have at least " + ((long) lineSize * h) + " bytes");
+		
+		dst.order(ByteOrder.LITTLE_ENDIAN);
+		dst.position(0);
+		check( backend.Lim_FileGetImageRectData(hFile, uiSeqIndex, attribs.uiWidth, attribs.uiHeight, 
+				x, y, w, h, dst, lineSize, LIMSTRETCH_QUICK, imgInfo) );
+		return dst;
+	}
+	
+	/**
+	 * Reads the whole {@link Picture} for the specified sequence index, scaled to 
+	 * {@code w x h} pixels, into {@code dst}, e.g., for a thumbnail. The lines are 
+	 * {@link #rectLineSize(int) rectLineSize(w)} bytes apart.
+	 * 
+	 * <p>This method also updates the values of {@link #imgInfo} for the specified index.</p>
+	 * 
+	 * @param uiSeqIndex the sequence index
+	 * @param w the width of the scaled image, in pixels
+	 * @param h the height of the scaled image, in pixels
+	 * @param stretchMode one of {@link #LIMSTRETCH_QUICK}, {@link #LIMSTRETCH_SPLINES} 
+	 * or {@link #LIMSTRETCH_LINEAR}
+	 * @param dst a direct ByteBuffer with at least {@code rectLineSize(w) * h} bytes
+	 * @return {@code dst}, in little-endian byte order
+	 * @throws IOException if there was an error in the native method
+	 */
+	public ByteBuffer getSeqScaledBytes(int uiSeqIndex, int w, int h, int stretchMode, ByteBuffer dst) throws IOException {
+		if (hFile == 0) 
+			throw new IOException("An ND2 file has not been initialized yet");
+		
+		if ( (uiSeqIndex < 0) || (uiSeqIndex >= attribs.uiSequenceCount) )
+			throw new IOException(String.format("Invalid uiSeqIndex value of %d. "
+					+ "Value must be >= 0 and < %d", uiSeqIndex, attribs.uiSequenceCount));
+		
+		if (w < 1 || h < 1)
+			throw new IOException(String.format("Invalid size %d x %d", w, h));
+		
+		final int lineSize = rectLineSize(w);
+		if (!dst.isDirect() || dst.capacity() < (long) lineSize * h)
+			throw new IOException("The ByteBuffer must be direct and have at least " + ((long) lineSize * h) + " bytes");
+		
+		dst.order(ByteOrder.LITTLE_ENDIAN);
+		dst.position(0);
+		check( backend.Lim_FileGetImageRectData(hFile, uiSeqIndex, w, h, 0, 0, w, h, dst, lineSize, stretchMode, imgInfo) );
+		return dst;
+	}
+	
+	/**
+	 * Returns the number of bytes in a line of a rectangle that is read with 
+	 * {@link #getSeqRectBytes(int, int, int, int, int, ByteBuffer)}, aligned to 4 bytes 
+	 * like {@link Attributes#uiWidthBytes}.
+	 * 
+	 * @param w the width of the rectangle, in pixels
+	 */
+	public int rectLineSize(int w) {
+		return (w * attribs.uiComp * (attribs.uiBpcInMemory / 8) + 3) / 4 * 4;
+	}
+	
+	/**
+	 * Enables the statistics mode. While enabled, {@link #getSeqBytes(int)} also 
+	 * computes the min, max, mean and histogram of every component (respecting 
+	 * {@link Attributes#uiBpcSignificant}) while it copies the frame, so that no 
+	 * additional pass over the pixels is required. The results are cached and can be 
+	 * retrieved with {@link #getSeqStatistics(int)}.
+	 * 
+	 * @param numBins the number of histogram bins for each component
+	 * @see #disableStatistics()
+	 */
+	public void enableStatistics(final int numBins) {
+		if (numBins < 1) throw new IllegalArgumentException("numBins must be >= 1");
+		if (numBins != statisticsBins) statisticsCache.clear();
+		statisticsBins = numBins;
+	}
+	
+	/**
+	 * Disables the statistics mode and clears the cached {@link FrameStatistics}.
+	 * 
+	 * @see #enableStatistics(int)
+	 */
+	public void disableStatistics() {
+		statisticsBins = 0;
+		statisticsCache.clear();
+	}
+	
+	/**
+	 * Sets the maximum number of {@link FrameStatistics} that are kept in the cache. 
+	 * The least-recently used statistics are discarded first. With a size of 0 nothing 
+	 * is cached, and {@link #getSeqStatistics(int)} reads the frame every time.
+	 * 
+	 * @param size the maximum number of frames
+	 */
+	public void setStatisticsCacheSize(final int size) {
+		if (size < 0) throw new IllegalArgumentException("size must be >= 0");
+		statisticsCacheSize = size;
+		final Iterator<Integer> it = statisticsCache.keySet().iterator();
+		while (statisticsCache.size() > size && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+	
+	/**
+	 * Returns the {@link FrameStatistics} for the specified sequence index. If the 
+	 * statistics are not cached then the frame is read with {@link #getSeqBytes(int)}, 
+	 * which replaces the contents of the returned ByteBuffer and of {@link #imgInfo}.
+	 * 
+	 * @param uiSeqIndex the sequence index
+	 * @throws IOException if the statistics mode is not enabled or there was an error 
+	 * in the native method
+	 * @see #enableStatistics(int)
+	 */
+	public FrameStatistics getSeqStatistics(int uiSeqIndex) throws IOException {
+		if (statisticsBins == 0)
+			throw new IOException("The statistics mode has not been enabled");
+		final FrameStatistics stats = statisticsCache.get(uiSeqIndex);
+		if (stats != null) return stats;
+		
+		// returned directly, with a cache size of 0 they are not kept in the cache
+		return readFrame(uiSeqIndex);
+	}
+	
+	/**
+	 * Returns the display range of every component for the whole file. The range is 
+	 * computed from the combined histograms of {@code numSamples} frames that are evenly 
+	 * spaced in the sequence (frames whose statistics are cached are not read again).
+	 * 
+	 * @param numSamples the number of frames to sample
+	 * @param lowPercent the percentage of the pixels that are displayed as black (e.g., 0.1)
+	 * @param highPercent the percentage of the pixels that are not saturated (e.g., 99.9)
+	 * @return the {min, max} display range of each component
+	 * @throws IOException if the statistics mode is not enabled or there was an error 
+	 * in the native method
+	 * @see FrameStatistics#aggregate(List)
+	 */
+	public double[][] displayRanges(final int numSamples, final double lowPercent, final double highPercent) throws IOException {
+		final int n = Math.max(1, Math.min(numSamples, attribs.uiSequenceCount));
+		final List<FrameStatistics> frames = new ArrayList<FrameStatistics>(n);
+		for (int i = 0; i < n; i++) {
+			final int seq = (int) ((long) i * attribs.uiSequenceCount / n);
+			frames.add(getSeqStatistics(seq));
+		}
+		return FrameStatistics.aggregate(frames).displayRanges(lowPercent, highPercent);
+	}
+	
+	/**
+	 * Returns the sequence index of a frame based on the given coordinates 
+	 * within the ND experiment structure. Unlike the native 
+	 * {@link #Lim_GetSeqIndexFromCoords(int[])}, this works with every backend.
+	 * 
+	 * @param coords a 4-element vector: {time, multipoint, z, other}
+	 * @throws IOException if an ND2 file has not been initialized
+	 * @see #getCoordsFromSeqIndex(int)
+	 */
+	public int getSeqIndexFromCoords(final int[] coords) throws IOException {
+		if (hFile == 0) throw new IOException("An ND2 file has not been initialized yet");
+		return backend.Lim_GetSeqIndexFromCoords(coords);
+	}
+	
+	/**
+	 * Returns the coordinates, {time, multipoint, z, other}, of a frame within the 
+	 * ND experiment structure based on the sequence index. Unlike the native 
+	 * {@link #Lim_GetCoordsFromSeqIndex(int)}, this works with every backend.
+	 * 
+	 * @param uiSeqIdx the sequence index
+	 * @throws IOException if an ND2 file has not been initialized
+	 * @see #getSeqIndexFromCoords(int[])
+	 */
+	public int[] getCoordsFromSeqIndex(final int uiSeqIdx) throws IOException {
+		if (hFile == 0) throw new IOException("An ND2 file has not been initialized yet");
+		return backend.Lim_GetCoordsFromSeqIndex(uiSeqIdx);
 	}
 	
 	/**
@@ -485,12 +835,60 @@ public class ND2SDK {
 	 */
 	public native int Lim_FileGetImageData(int hFile, int uiSeqIndex, ByteBuffer buffer, LocalMetadata pImgInfo);
 	
+	/**
+	 * Gets the raw image bytes of a rectangle for the specified {@code uiSeqIndex}. The 
+	 * image is scaled to {@code uiDstTotalW x uiDstTotalH} and the rectangle is taken 
+	 * from the scaled image (use {@link Attributes#uiWidth} and {@link Attributes#uiHeight} 
+	 * to read the rectangle at the full resolution).
+	 * 
+	 * @param hFile the file handle
+	 * @param uiSeqIndex the sequence index
+	 * @param uiDstTotalW the width of the whole (scaled) image
+	 * @param uiDstTotalH the height of the whole (scaled) image
+	 * @param uiDstX the x offset of the rectangle in the scaled image
+	 * @param uiDstY the y offset of the rectangle in the scaled image
+	 * @param uiDstW the width of the rectangle
+	 * @param uiDstH the height of the rectangle
+	 * @param buffer a {@link ByteBuffer} that has memory which has been directly allocated, 
+	 * with at least {@code uiDstLineSize * uiDstH} bytes
+	 * @param uiDstLineSize the number of bytes in a line of the rectangle
+	 * @param iStretchMode one of {@link #LIMSTRETCH_QUICK}, {@link #LIMSTRETCH_SPLINES} 
+	 * or {@link #LIMSTRETCH_LINEAR}
+	 * @param pImgInfo updates the information about the relative timestamp and the XYZ 
+	 * position of the microscope stage for the specified {@code uiSeqIndex} into this object 
+	 * @return LIMRESULT, an error-checking value for whether the native call was successful
+	 */
+	public native int Lim_FileGetImageRectData(int hFile, int uiSeqIndex, int uiDstTotalW, int uiDstTotalH, int uiDstX, int uiDstY, 
+			int uiDstW, int uiDstH, ByteBuffer buffer, int uiDstLineSize, int iStretchMode, LocalMetadata pImgInfo);
+	
+	/**
+	 * Same as {@link #Lim_FileGetImageData}, and also computes the statistics of 
+	 * every component while the image bytes are copied into the {@code buffer}.
+	 * Float values that are NaN or infinite are not included.
+	 * 
+	 * @param hFile the file handle
+	 * @param uiSeqIndex the sequence index
+	 * @param buffer a {@link ByteBuffer} that has memory which has been directly allocated
+	 * @param pImgInfo updates the information about the relative timestamp and the XYZ 
+	 * position of the microscope stage for the specified {@code uiSeqIndex} into this object 
+	 * @param bpcSignificant the number of significant bits per component (use 
+	 * {@link Attributes#uiBpcSignificant}), determines the histogram range of integer images
+	 * @param min is filled with the minimum value of each component
+	 * @param max is filled with the maximum value of each component
+	 * @param sum is filled with the sum of the values of each component
+	 * @param histRange is filled with the {min, max} pair of the histogram of each component
+	 * @param histogram is filled with the histograms of all components, one after the other. 
+	 * The number of bins is {@code histogram.length / uiComponents}
+	 * @return LIMRESULT, an error-checking value for whether the native call was successful
+	 */
+	public native int Lim_FileGetImageDataStats(int hFile, int uiSeqIndex, ByteBuffer buffer, LocalMetadata pImgInfo,
+			int bpcSignificant, double[] min, double[] max, double[] sum, double[] histRange, long[] histogram);
+	
 	/*
 	 * Methods that are not yet implemented
 	 * 
 	 */
 	
-	//LIMFILEAPI LIMRESULT Lim_FileGetImageRectData(LIMFILEHANDLE hFile, LIMUINT uiSeqIndex, LIMUINT uiDstTotalW, LIMUINT uiDstTotalH, LIMUINT uiDstX, LIMUINT uiDstY, LIMUINT uiDstW, LIMUINT uiDstH, void* pBuffer, LIMUINT uiDstLineSize, LIMINT iStretchMode, LIMLOCALMETADATA* pImgInfo);
 	//LIMFILEAPI LIMRESULT Lim_FileGetBinary(LIMFILEHANDLE hFile, LIMUINT uiSequenceIndex, LIMUINT uiBinaryIndex, LIMPICTURE* pPicture);
 	//LIMFILEAPI LIMRESULT Lim_GetMultipointName(LIMFILEHANDLE hFile, LIMUINT uiPointIdx, LIMWSTR wstrPointName);
 	//LIMFILEAPI LIMRESULT Lim_GetLargeImageDimensions(LIMFILEHANDLE hFile, LIMUINT* puiXFields, LIMUINT* puiYFields, double* pdOverlap);
@@ -499,262 +897,3 @@ public class ND2SDK {
 	//LIMFILEAPI LIMRESULT Lim_GetRecordedDataString(LIMFILEHANDLE hFile, LIMCWSTR wszName, LIMINT uiSeqIndex, LIMWSTR wszData);
 	//LIMFILEAPI LIMRESULT Lim_GetNextUserEvent(LIMFILEHANDLE hFile, LIMUINT *puiNextID, LIMFILEUSEREVENT* pEventInfo);
 }
-
-/** 
- * The LIMATTRIBUTES struct found in nd2ReadSDK.h 
- * <pre>
- * int uiWidth;             // Width of images, in pixels
- * int uiWidthBytes;        // Line length 4-byte aligned
- * int uiHeight;            // Height of images, in pixels
- * int uiComp;              // Number of components
- * int uiBpcInMemory;       // Bits per component 8, 16 or 32 (for float image)
- * int uiBpcSignificant;    // Bits per component used 8 .. 16 or 32 (for float image)
- * int uiSequenceCount;     // Number of images in the sequence
- * int uiTileWidth;         // If an image is tiled then the width of the tile/strip, otherwise zero
- * int uiTileHeight;        // If an image is tiled then the height of the tile/strip, otherwise zero
- * int uiCompression;       // 0 (lossless), 1 (lossy), 2 (None)
- * int uiQuality;           // 0 (worst) - 100 (best)
- * </pre>
- */
-class Attributes {
-	/** Width of images, in pixels */
-	int uiWidth;
-	/** Line length 4-byte aligned */
-	int uiWidthBytes;
-	/** Height of images, in pixels */
-	int uiHeight;
-	/** Number of components */
-	int uiComp;
-	/** Bits per component 8, 16 or 32 (for float image) */
-	int uiBpcInMemory;
-	/** Bits per component used 8 .. 16 or 32 (for float image) */
-	int uiBpcSignificant;
-	/** Number of images in the sequence */
-	int uiSequenceCount;
-	/** If an image is tiled then the width of the tile/strip, otherwise zero */
-	int uiTileWidth;
-	/** If an image is tiled then the height of the tile/strip, otherwise zero */
-	int uiTileHeight;
-	/** 0 (lossless), 1 (lossy), 2 (None) */
-	int uiCompression;
-	/** 0 (worst) - 100 (best) */
-	int uiQuality;
-}
-
-/** 
- * The LIMMETADATA_DESC struct found in nd2ReadSDK.h 
- * <pre>
- * double dTimeStart;          // Absolute Time in JDN
- * double dAngle;              // Camera Angle
- * double dCalibration;        // um/px (0.0 = uncalibrated)
- * double dAspect;             // pixel aspect (always 1.0)
- * String wszObjectiveName;    // The name of the objective
- * double dObjectiveMag;       // Optional additional information
- * double dObjectiveNA;        // dCalibration takes into accont all these
- * double dRefractIndex1;
- * double dRefractIndex2;
- * double dPinholeRadius;
- * double dZoom;
- * double dProjectiveMag;
- * int uiImageType;            // 0 (normal), 1 (spectral)
- * int uiPlaneCount;           // Number of logical planes (uiPlaneCount <= uiComponentCount)
- * int uiComponentCount;       // Number of physical components (same as uiComp in LIMFILEATTRIBUTES)
- * {@link PicturePlaneDesc}[] pPlanes;
- * </pre>
- */
-class MetadataDesc {
-	/** Absolute Time in JDN */
-	double dTimeStart;
-	/** Camera Angle */
-	double dAngle;
-	/** um/px (0.0 = uncalibrated) */
-	double dCalibration; 
-	/** pixel aspect (always 1.0) */
-	double dAspect;
-	/** The name of the objective */
-	String wszObjectiveName;
-	double dObjectiveMag;       // Optional additional information
-	double dObjectiveNA;        // dCalibration takes into account all these
-	double dRefractIndex1;
-	double dRefractIndex2;
-	double dPinholeRadius;
-	double dZoom;
-	double dProjectiveMag;
-	/** 0 (normal), 1 (spectral) */
-	int uiImageType; 
-	/** Number of logical planes (uiPlaneCount <= uiComponentCount) */
-	int uiPlaneCount; 
-	/** Number of physical components (same as uiComp in {@link Attributes}) */
-	int uiComponentCount;       //
-	PicturePlaneDesc[] pPlanes;
-}
-
-/** 
- * The LIMPICTUREPLANE_DESC struct found in nd2ReadSDK.h
- * <pre>
- * int uiCompCount;    // Number of physical components
- * int uiColorRGB;     // RGB color for display 0xBBGGRR
- * String wszName;     // Name for display
- * String wszOCName;   // Name of the Optical Configuration
- * double dEmissionWL; // The emission wavelength
- * </pre>
- */
-class PicturePlaneDesc {
-	/** Number of physical components */
-	int uiCompCount;
-	/** RGB color for display 0xBBGGRR */
-	int uiColorRGB;
-	/** Name for display */
-	String wszName;  
-	/** Name of the Optical Configuration */
-	String wszOCName;
-	/** The emission wavelength */
-	double dEmissionWL;
-}
-
-/** 
- * The LIMTEXTINFO struct found in nd2ReadSDK.h 
- * <pre>
- * String wszImageID;
- * String wszType;
- * String wszGroup;
- * String wszSampleID;
- * String wszAuthor;
- * String wszDescription;
- * String wszCapturing;
- * String wszSampling;
- * String wszLocation;
- * String wszDate;
- * String wszConclusion;
- * String wszInfo1;
- * String wszInfo2;
- * String wszOptics;
- * </pre>
- */
-class TextInfo {
-	String wszImageID;
-	String wszType;
-	String wszGroup;
-	String wszSampleID;
-	String wszAuthor;
-	String wszDescription;
-	String wszCapturing;
-	String wszSampling;
-	String wszLocation;
-	String wszDate;
-	String wszConclusion;
-	String wszInfo1;
-	String wszInfo2;
-	String wszOptics;
-}
-
-/** 
- * The LIMEXPERIMENT struct found in nd2ReadSDK.h
- * <pre>
- * int uiLevelCount;                    // Number of dimensions excluding Lambda
- * {@link ExperimentLevel}[] pAllocatedLevels;  // An array containing information about number of frames within each dimension.
- * </pre>
- */
-class Experiment {
-	/** Number of dimensions excluding Lambda. */
-	int uiLevelCount;
-	/** An array containing information about number of frames within each dimension. */
-	ExperimentLevel[] pAllocatedLevels; 
-}
-
-/** 
- * The LIMEXPERIMENTLEVEL struct found in nd2ReadSDK.h 
- * <pre>
- * int uiExpType;    // Dimension type, see the LIMLOOP_* constant values
- * int uiLoopSize;   // Number of images in the loop
- * double dInterval; // ms (for Time), um (for ZStack), -1.0 (for Multipoint)
- * </pre>
- */
-class ExperimentLevel {
-	/** Dimension type, see the LIMLOOP_* constant values. */
-	int uiExpType;
-	/** Number of images in the loop. */
-	int uiLoopSize;
-	/** ms (for Time), um (for ZStack), -1.0 (for Multipoint) */
-	double dInterval; 
-}
-
-/** 
- * The LIMBINARIES struct found in nd2ReadSDK.h 
- * <pre>
- * int uiCount;                              // Number of binary layers
- * {@link BinaryDescriptor}[] pDescriptors;  // Describes a binary layer: name, associated component, color 
- * </pre>
- */
-class Binaries {
-	/** Number of binary layers */
-	int uiCount;
-	/** Describes a binary layer: name, associated component, color. */
-	BinaryDescriptor[] pDescriptors;
-}
-
-/** 
- * The LIMBINARIES struct found in nd2ReadSDK.h
- * <pre>
- * String wszName;     // Name of binary layer
- * String wszCompName; // Name of component, or empty string if this binary layer is unbound
- * int uiColorRGB;     // Color of the binary layer
- * </pre> 
- */
-class BinaryDescriptor {
-	/** Name of binary layer. */
-	String wszName;
-	/** Name of component, or empty string if this binary layer is unbound. */
-	String wszCompName;
-	/** Color of the binary layer. */
-	int uiColorRGB;
-}
-
-/** 
- * The LIMPICTURE struct found in nd2ReadSDK.h
- * <pre>
- * int uiWidth;        // Width of the image, in pixels
- * int uiHeight;       // Height of the image, in pixels
- * int uiBitsPerComp;  // Number of bits per component (8, 10, 12, 14, 16). For binary images, use 32 bits 
- * int uiComponents;   // Number of components in every pixel (any number up to 160 1:mono, 3:RGB)
- * int uiWidthBytes;   // Aligned to 4-byte (like windows BITMAP)
- * int uiSize;         // Size of the image in memory (= uiWidthBytes * uiHeight)
- * long pImageData;    // Java version of a void pointer to the image data
- * </pre>  
- */
-class Picture {
-	/** Width of the image, in pixels. */
-	int uiWidth;
-	/** Height of the image, in pixels. */
-	int uiHeight;
-	/** Number of bits per component (8, 10, 12, 14, 16). For binary images, use 32 bits. */
-	int uiBitsPerComp;
-	/** Number of components in every pixel (any number up to 160 1:mono, 3:RGB). */
-	int uiComponents;
-	/** Aligned to 4-byte (like windows BITMAP). */
-	int uiWidthBytes;
-	/** Size of the image in memory (= uiWidthBytes * uiHeight). */
-	int uiSize;
-	/** Java version of a void pointer to the image data. */
-	long pImageData;
-}
-
-/** 
- * The LIMLOCALMETADATA struct found in nd2ReadSDK.h
- * <pre>
- * double dTimeMSec;   // Relative time msec from the first
- * double dXPos;       // Stage XPos
- * double dYPos;       // Stage YPos
- * double dZPos;       // Stage ZPos
- * </pre>  
- */
-class LocalMetadata {
-	/** Relative time msec from the first */
-	double dTimeMSec;
-	/** Stage XPos */
-	double dXPos;
-	/** Stage YPos */
-	double dYPos;
-	/** Stage ZPos */
-	double dZPos;
-}
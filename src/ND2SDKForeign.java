@@ -0,0 +1,707 @@
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemoryLayout.PathElement;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+
+/**
+ * A {@link ND2Backend} that calls the nd2ReadSDK library directly through the
+ * {@code java.lang.foreign} API (JDK 21 with {@code --enable-preview}, or later),
+ * so no compiled JNI library (ND2SDK.cpp) is required.
+ *
+ * <p>The LIMATTRIBUTES, LIMMETADATA_DESC, LIMTEXTINFO, LIMEXPERIMENT, LIMBINARIES,
+ * LIMPICTURE and LIMLOCALMETADATA structs are described as {@link MemoryLayout}s and
+ * are allocated from an {@link Arena}. The pixels are decoded
+ * straight into the destination memory: before {@code Lim_FileGetImageData} is
+ * called the {@code pImageData} pointer of the LIMPICTURE is pointed at the
+ * destination buffer, so no copy is made.</p>
+ *
+ * <p>The library is loaded from the path in the {@value #LIBRARY_PROPERTY} system
+ * property, or else by its name (e.g., libnd2ReadSDK.so) from the library search path.</p>
+ *
+ * <p>Select this backend with {@code new ND2SDK(ND2SDK.BACKEND_FOREIGN)} or
+ * {@code -Dnd2sdk.backend=foreign}.</p>
+ */
+public class ND2SDKForeign implements ND2Backend {
+
+	/** The system property that contains the path to the nd2ReadSDK library */
+	public static final String LIBRARY_PROPERTY = "nd2sdk.library";
+
+	/** The size of a wchar_t: 2 bytes (UTF-16) on Windows, 4 bytes (UTF-32) elsewhere */
+	static final int WCHAR_SIZE = System.getProperty("os.name").startsWith("Windows") ? 2 : 4;
+
+	private static final Charset WCHAR_CHARSET = Charset.forName(WCHAR_SIZE == 2 ? "UTF-16LE" : "UTF-32LE");
+
+	private static final ValueLayout.OfInt UINT = ValueLayout.JAVA_INT;
+	private static final ValueLayout.OfDouble DOUBLE = ValueLayout.JAVA_DOUBLE;
+
+	private static MemoryLayout wstr(final int length) {
+		return MemoryLayout.sequenceLayout(length, WCHAR_SIZE == 2 ? ValueLayout.JAVA_SHORT : ValueLayout.JAVA_INT);
+	}
+
+	/** LIMATTRIBUTES */
+	static final StructLayout LIMATTRIBUTES = MemoryLayout.structLayout(
+			UINT.withName("uiWidth"),
+			UINT.withName("uiWidthBytes"),
+			UINT.withName("uiHeight"),
+			UINT.withName("uiComp"),
+			UINT.withName("uiBpcInMemory"),
+			UINT.withName("uiBpcSignificant"),
+			UINT.withName("uiSequenceCount"),
+			UINT.withName("uiTileWidth"),
+			UINT.withName("uiTileHeight"),
+			UINT.withName("uiCompression"),
+			UINT.withName("uiQuality"));
+
+	/** LIMPICTUREPLANE_DESC */
+	static final StructLayout LIMPICTUREPLANE_DESC = MemoryLayout.structLayout(
+			UINT.withName("uiCompCount"),
+			UINT.withName("uiColorRGB"),
+			wstr(256).withName("wszName"),
+			wstr(256).withName("wszOCName"),
+			DOUBLE.withName("dEmissionWL"));
+
+	/** LIMMETADATA_DESC */
+	static final StructLayout LIMMETADATA_DESC = MemoryLayout.structLayout(
+			DOUBLE.withName("dTimeStart"),
+			DOUBLE.withName("dAngle"),
+			DOUBLE.withName("dCalibration"),
+			DOUBLE.withName("dAspect"),
+			wstr(256).withName("wszObjectiveName"),
+			DOUBLE.withName("dObjectiveMag"),
+			DOUBLE.withName("dObjectiveNA"),
+			DOUBLE.withName("dRefractIndex1"),
+			DOUBLE.withName("dRefractIndex2"),
+			DOUBLE.withName("dPinholeRadius"),
+			DOUBLE.withName("dZoom"),
+			DOUBLE.withName("dProjectiveMag"),
+			UINT.withName("uiImageType"),
+			UINT.withName("uiPlaneCount"),
+			UINT.withName("uiComponentCount"),
+			MemoryLayout.paddingLayout(4),
+			MemoryLayout.sequenceLayout(ND2SDK.LIMMAXPICTUREPLANES, LIMPICTUREPLANE_DESC).withName("pPlanes"));
+
+	/** LIMTEXTINFO */
+	static final StructLayout LIMTEXTINFO = MemoryLayout.structLayout(
+			wstr(256).withName("wszImageID"),
+			wstr(256).withName("wszType"),
+			wstr(256).withName("wszGroup"),
+			wstr(256).withName("wszSampleID"),
+			wstr(256).withName("wszAuthor"),
+			wstr(4096).withName("wszDescription"),
+			wstr(4096).withName("wszCapturing"),
+			wstr(256).withName("wszSampling"),
+			wstr(256).withName("wszLocation"),
+			wstr(256).withName("wszDate"),
+			wstr(256).withName("wszConclusion"),
+			wstr(256).withName("wszInfo1"),
+			wstr(256).withName("wszInfo2"),
+			wstr(256).withName("wszOptics"),
+			wstr(256).withName("wszAppVersion"));
+
+	/** LIMEXPERIMENTLEVEL */
+	static final StructLayout LIMEXPERIMENTLEVEL = MemoryLayout.structLayout(
+			UINT.withName("uiExpType"),
+			UINT.withName("uiLoopSize"),
+			DOUBLE.withName("dInterval"));
+
+	/** LIMEXPERIMENT */
+	static final StructLayout LIMEXPERIMENT = MemoryLayout.structLayout(
+			UINT.withName("uiLevelCount"),
+			MemoryLayout.paddingLayout(4),
+			MemoryLayout.sequenceLayout(ND2SDK.LIMMAXEXPERIMENTLEVEL, LIMEXPERIMENTLEVEL).withName("pAllocatedLevels"));
+
+	/** LIMBINARYDESCRIPTOR */
+	static final StructLayout LIMBINARYDESCRIPTOR = MemoryLayout.structLayout(
+			wstr(256).withName("wszName"),
+			wstr(256).withName("wszCompName"),
+			UINT.withName("uiColorRGB"));
+
+	/** LIMBINARIES */
+	static final StructLayout LIMBINARIES = MemoryLayout.structLayout(
+			UINT.withName("uiCount"),
+			MemoryLayout.sequenceLayout(ND2SDK.LIMMAXBINARIES, LIMBINARYDESCRIPTOR).withName("pDescriptors"));
+
+	/** LIMPICTURE (LIMSIZE is a size_t) */
+	static final StructLayout LIMPICTURE = MemoryLayout.structLayout(
+			UINT.withName("uiWidth"),
+			UINT.withName("uiHeight"),
+			UINT.withName("uiBitsPerComp"),
+			UINT.withName("uiComponents"),
+			UINT.withName("uiWidthBytes"),
+			MemoryLayout.paddingLayout(4),
+			ValueLayout.JAVA_LONG.withName("uiSize"),
+			ValueLayout.ADDRESS.withName("pImageData"));
+
+	/** LIMLOCALMETADATA */
+	static final StructLayout LIMLOCALMETADATA = MemoryLayout.structLayout(
+			DOUBLE.withName("dTimeMSec"),
+			DOUBLE.withName("dXPos"),
+			DOUBLE.withName("dYPos"),
+			DOUBLE.withName("dZPos"));
+
+	// the offsets of the fields that are accessed for every frame
+	private static final long PICTURE_SIZE = offset(LIMPICTURE, "uiSize");
+	private static final long PICTURE_DATA = offset(LIMPICTURE, "pImageData");
+	private static final long LOCAL_TIME = offset(LIMLOCALMETADATA, "dTimeMSec");
+	private static final long LOCAL_X = offset(LIMLOCALMETADATA, "dXPos");
+	private static final long LOCAL_Y = offset(LIMLOCALMETADATA, "dYPos");
+	private static final long LOCAL_Z = offset(LIMLOCALMETADATA, "dZPos");
+
+	/** The downcall handles of the library functions, shared by all instances */
+	private static final MethodHandle FileOpenForRead, FileClose, FileGetAttributes, FileGetMetadata,
+			FileGetTextinfo, FileGetExperiment, FileGetBinaryDescriptors, FileGetImageData,
+			FileGetImageRectData, InitPicture, DestroyPicture, GetSeqIndexFromCoords, GetCoordsFromSeqIndex;
+
+	static {
+		final String path = System.getProperty(LIBRARY_PROPERTY);
+		final SymbolLookup lib = path != null
+				? SymbolLookup.libraryLookup(Paths.get(path), Arena.global())
+				: SymbolLookup.libraryLookup(System.mapLibraryName("nd2ReadSDK"), Arena.global());
+
+		final ValueLayout.OfInt I = ValueLayout.JAVA_INT;
+		final ValueLayout A = ValueLayout.ADDRESS;
+		FileOpenForRead          = handle(lib, "Lim_FileOpenForRead", FunctionDescriptor.of(I, A));
+		FileClose                = handle(lib, "Lim_FileClose", FunctionDescriptor.of(I, I));
+		FileGetAttributes        = handle(lib, "Lim_FileGetAttributes", FunctionDescriptor.of(I, I, A));
+		FileGetMetadata          = handle(lib, "Lim_FileGetMetadata", FunctionDescriptor.of(I, I, A));
+		FileGetTextinfo          = handle(lib, "Lim_FileGetTextinfo", FunctionDescriptor.of(I, I, A));
+		FileGetExperiment        = handle(lib, "Lim_FileGetExperiment", FunctionDescriptor.of(I, I, A));
+		FileGetBinaryDescriptors = handle(lib, "Lim_FileGetBinaryDescriptors", FunctionDescriptor.of(I, I, A));
+		FileGetImageData         = handle(lib, "Lim_FileGetImageData", FunctionDescriptor.of(I, I, I, A, A));
+		FileGetImageRectData     = handle(lib, "Lim_FileGetImageRectData", FunctionDescriptor.of(I, I, I, I, I, I, I, I, I, A, I, I, A));
+		InitPicture              = handle(lib, "Lim_InitPicture", FunctionDescriptor.of(ValueLayout.JAVA_LONG, A, I, I, I, I));
+		DestroyPicture           = handle(lib, "Lim_DestroyPicture", FunctionDescriptor.ofVoid(A));
+		GetSeqIndexFromCoords    = handle(lib, "Lim_GetSeqIndexFromCoords", FunctionDescriptor.of(I, A, A));
+		GetCoordsFromSeqIndex    = handle(lib, "Lim_GetCoordsFromSeqIndex", FunctionDescriptor.ofVoid(A, I, A));
+	}
+
+	private static MethodHandle handle(final SymbolLookup lib, final String name, final FunctionDescriptor descriptor) {
+		final MemorySegment symbol = lib.find(name).orElseThrow(() -> new UnsatisfiedLinkError("Cannot find " + name));
+		return Linker.nativeLinker().downcallHandle(symbol, descriptor);
+	}
+
+	private static long offset(final MemoryLayout layout, final String name) {
+		return layout.byteOffset(PathElement.groupElement(name));
+	}
+
+	/**
+	 * Allocates the small structs that are used after a file is opened, they are freed
+	 * when the instance is garbage collected. The large structs that are only read once
+	 * per file (LIMMETADATA_DESC, LIMTEXTINFO and LIMBINARIES, about 840 KB together)
+	 * are allocated for the duration of the call, so that opening many files does not
+	 * hold native memory until the next garbage collection.
+	 */
+	private final Arena arena = Arena.ofAuto();
+
+	private final MemorySegment attributes = arena.allocate(LIMATTRIBUTES);
+	private final MemorySegment experiment = arena.allocate(LIMEXPERIMENT);
+	private final MemorySegment picture = arena.allocate(LIMPICTURE);
+	private final MemorySegment localMetadata = arena.allocate(LIMLOCALMETADATA);
+	private final MemorySegment coords = arena.allocate(MemoryLayout.sequenceLayout(4, UINT));
+
+	/** The pImageData that was allocated by Lim_InitPicture, or NULL */
+	private MemorySegment pictureData = MemorySegment.NULL;
+
+	/**
+	 * Loads the nd2ReadSDK library (the first time) and allocates the structs.
+	 */
+	public ND2SDKForeign() {
+	}
+
+	@Override
+	public int Lim_FileOpenForRead(final String filename) {
+		try (Arena temp = Arena.ofConfined()) {
+			final byte[] chars = filename.getBytes(WCHAR_CHARSET);
+			final MemorySegment wsz = temp.allocate(chars.length + WCHAR_SIZE, WCHAR_SIZE);
+			MemorySegment.copy(chars, 0, wsz, ValueLayout.JAVA_BYTE, 0, chars.length);
+			return (int) FileOpenForRead.invokeExact(wsz);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int Lim_FileClose(final int hFile) {
+		try {
+			return (int) FileClose.invokeExact(hFile);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int Lim_FileGetAttributes(final int hFile, final Attributes a) {
+		final int ret;
+		try {
+			ret = (int) FileGetAttributes.invokeExact(hFile, attributes);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+		if (ret == 0) {
+			a.uiWidth = getInt(attributes, LIMATTRIBUTES, "uiWidth");
+			a.uiWidthBytes = getInt(attributes, LIMATTRIBUTES, "uiWidthBytes");
+			a.uiHeight = getInt(attributes, LIMATTRIBUTES, "uiHeight");
+			a.uiComp = getInt(attributes, LIMATTRIBUTES, "uiComp");
+			a.uiBpcInMemory = getInt(attributes, LIMATTRIBUTES, "uiBpcInMemory");
+			a.uiBpcSignificant = getInt(attributes, LIMATTRIBUTES, "uiBpcSignificant");
+			a.uiSequenceCount = getInt(attributes, LIMATTRIBUTES, "uiSequenceCount");
+			a.uiTileWidth = getInt(attributes, LIMATTRIBUTES, "uiTileWidth");
+			a.uiTileHeight = getInt(attributes, LIMATTRIBUTES, "uiTileHeight");
+			a.uiCompression = getInt(attributes, LIMATTRIBUTES, "uiCompression");
+			a.uiQuality = getInt(attributes, LIMATTRIBUTES, "uiQuality");
+		}
+		return ret;
+	}
+
+	@Override
+	public int Lim_FileGetMetadata(final int hFile, final MetadataDesc m) {
+		try (Arena temp = Arena.ofConfined()) {
+			final MemorySegment metadata = temp.allocate(LIMMETADATA_DESC);
+			final int ret;
+			try {
+				ret = (int) FileGetMetadata.invokeExact(hFile, metadata);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+			if (ret == 0) {
+				m.dTimeStart = getDouble(metadata, LIMMETADATA_DESC, "dTimeStart");
+				m.dAngle = getDouble(metadata, LIMMETADATA_DESC, "dAngle");
+				m.dCalibration = getDouble(metadata, LIMMETADATA_DESC, "dCalibration");
+				m.dAspect = getDouble(metadata, LIMMETADATA_DESC, "dAspect");
+				m.wszObjectiveName = getString(metadata, LIMMETADATA_DESC, "wszObjectiveName");
+				m.dObjectiveMag = getDouble(metadata, LIMMETADATA_DESC, "dObjectiveMag");
+				m.dObjectiveNA = getDouble(metadata, LIMMETADATA_DESC, "dObjectiveNA");
+				m.dRefractIndex1 = getDouble(metadata, LIMMETADATA_DESC, "dRefractIndex1");
+				m.dRefractIndex2 = getDouble(metadata, LIMMETADATA_DESC, "dRefractIndex2");
+				m.dPinholeRadius = getDouble(metadata, LIMMETADATA_DESC, "dPinholeRadius");
+				m.dZoom = getDouble(metadata, LIMMETADATA_DESC, "dZoom");
+				m.dProjectiveMag = getDouble(metadata, LIMMETADATA_DESC, "dProjectiveMag");
+				m.uiImageType = getInt(metadata, LIMMETADATA_DESC, "uiImageType");
+				m.uiPlaneCount = getInt(metadata, LIMMETADATA_DESC, "uiPlaneCount");
+				m.uiComponentCount = getInt(metadata, LIMMETADATA_DESC, "uiComponentCount");
+
+				final int count = Math.min(m.uiPlaneCount, ND2SDK.LIMMAXPICTUREPLANES);
+				final long planes = offset(LIMMETADATA_DESC, "pPlanes");
+				m.pPlanes = new PicturePlaneDesc[count];
+				for (int i = 0; i < count; i++) {
+					final MemorySegment plane = metadata.asSlice(planes + i * LIMPICTUREPLANE_DESC.byteSize(), LIMPICTUREPLANE_DESC);
+					final PicturePlaneDesc p = new PicturePlaneDesc();
+					p.uiCompCount = getInt(plane, LIMPICTUREPLANE_DESC, "uiCompCount");
+					p.uiColorRGB = getInt(plane, LIMPICTUREPLANE_DESC, "uiColorRGB");
+					p.wszName = getString(plane, LIMPICTUREPLANE_DESC, "wszName");
+					p.wszOCName = getString(plane, LIMPICTUREPLANE_DESC, "wszOCName");
+					p.dEmissionWL = getDouble(plane, LIMPICTUREPLANE_DESC, "dEmissionWL");
+					m.pPlanes[i] = p;
+				}
+			}
+			return ret;
+		}
+	}
+
+	@Override
+	public int Lim_FileGetTextinfo(final int hFile, final TextInfo t) {
+		try (Arena temp = Arena.ofConfined()) {
+			final MemorySegment textinfo = temp.allocate(LIMTEXTINFO);
+			final int ret;
+			try {
+				ret = (int) FileGetTextinfo.invokeExact(hFile, textinfo);
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+			if (ret == 0) {
+				t.wszImageID = getString(textinfo, LIMTEXTINFO, "wszImageID");
+				t.wszType = getString(textinfo, LIMTEXTINFO, "wszType");
+				t.wszGroup = getString(textinfo, LIMTEXTINFO, "wszGroup");
+				t.wszSampleID = getString(textinfo, LIMTEXTINFO, "wszSampleID");
+				t.wszAuthor = getString(textinfo, LIMTEXTINFO, "wszAuthor");
+				t.wszDescription = getString(textinfo, LIMTEXTINFO, "wszDescription");
+				t.wszCapturing = getString(textinfo, LIMTEXTINFO, "wszCapturing");
+				t.wszSampling = getString(textinfo, LIMTEXTINFO, "wszSampling");
+				t.wszLocation = getString(textinfo, LIMTEXTINFO, "wszLocation");
+				t.wszDate = getString(textinfo, LIMTEXTINFO, "wszDate");
+				t.wszConclusion = getString(textinfo, LIMTEXTINFO, "wszConclusion");
+				t.wszInfo1 = getString(textinfo, LIMTEXTINFO, "wszInfo1");
+				t.wszInfo2 = getString(textinfo, LIMTEXTINFO, "wszInfo2");
+				t.wszOptics = getString(textinfo, LIMTEXTINFO, "wszOptics");
+			}
+			return ret;
+		}
+	}
+
+	@Override
+	public int Lim_FileGetExperiment(final int hFile, final Experiment e) {
+		final int ret;
+		try {
+			ret = (int) FileGetExperiment.invokeExact(hFile, experiment);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+		if (ret == 0) {
+			e.uiLevelCount = Math.min(getInt(experiment, LIMEXPERIMENT, "uiLevelCount"), ND2SDK.LIMMAXEXPERIMENTLEVEL);
+			final long levels = offset(LIMEXPERIMENT, "pAllocatedLevels");
+			e.pAllocatedLevels = new ExperimentLevel[e.uiLevelCount];
+			for (int i = 0; i < e.uiLevelCount; i++) {
+				final MemorySegment level = experiment.asSlice(levels + i * LIMEXPERIMENTLEVEL.byteSize(), LIMEXPERIMENTLEVEL);
+				final ExperimentLevel l = new ExperimentLevel();
+				l.uiExpType = getInt(level, LIMEXPERIMENTLEVEL, "uiExpType");
+				l.uiLoopSize = getInt(level, LIMEXPERIMENTLEVEL, "uiLoopSize");
+				l.dInterval = getDouble(level, LIMEXPERIMENTLEVEL, "dInterval");
+				e.pAllocatedLevels[i] = l;
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public int Lim_FileGetBinaryDescriptors(final int hFile, final Binaries b) {
+		try (Arena temp = Arena.ofConfined()) {
+			final MemorySegment binaries = temp.allocate(LIMBINARIES);
+			final int ret;
+			try {
+				ret = (int) FileGetBinaryDescriptors.invokeExact(hFile, binaries);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+			if (ret == 0) {
+				b.uiCount = Math.min(getInt(binaries, LIMBINARIES, "uiCount"), ND2SDK.LIMMAXBINARIES);
+				final long descriptors = offset(LIMBINARIES, "pDescriptors");
+				b.pDescriptors = new BinaryDescriptor[b.uiCount];
+				for (int i = 0; i < b.uiCount; i++) {
+					final MemorySegment desc = binaries.asSlice(descriptors + i * LIMBINARYDESCRIPTOR.byteSize(), LIMBINARYDESCRIPTOR);
+					final BinaryDescriptor d = new BinaryDescriptor();
+					d.wszName = getString(desc, LIMBINARYDESCRIPTOR, "wszName");
+					d.wszCompName = getString(desc, LIMBINARYDESCRIPTOR, "wszCompName");
+					d.uiColorRGB = getInt(desc, LIMBINARYDESCRIPTOR, "uiColorRGB");
+					b.pDescriptors[i] = d;
+				}
+			}
+			return ret;
+		}
+	}
+
+	@Override
+	public int Lim_InitPicture(final Picture p, final int width, final int height, final int bpc, final int components) {
+		Lim_DestroyPicture();
+		final long size;
+		try {
+			size = (long) InitPicture.invokeExact(picture, width, height, bpc, components);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+		pictureData = picture.get(ValueLayout.ADDRESS, PICTURE_DATA);
+		p.uiWidth = getInt(picture, LIMPICTURE, "uiWidth");
+		p.uiHeight = getInt(picture, LIMPICTURE, "uiHeight");
+		p.uiBitsPerComp = getInt(picture, LIMPICTURE, "uiBitsPerComp");
+		p.uiComponents = getInt(picture, LIMPICTURE, "uiComponents");
+		p.uiWidthBytes = getInt(picture, LIMPICTURE, "uiWidthBytes");
+		p.uiSize = (int) picture.get(ValueLayout.JAVA_LONG, PICTURE_SIZE);
+		p.pImageData = pictureData.address();
+		return (int) size;
+	}
+
+	@Override
+	public void Lim_DestroyPicture() {
+		if (pictureData.equals(MemorySegment.NULL)) return;
+		picture.set(ValueLayout.ADDRESS, PICTURE_DATA, pictureData);
+		try {
+			DestroyPicture.invokeExact(picture);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+		pictureData = MemorySegment.NULL;
+	}
+
+	@Override
+	public int Lim_GetSeqIndexFromCoords(final int[] c) {
+		if (c.length != 4)
+			throw new ArrayIndexOutOfBoundsException("Lim_GetSeqIndexFromCoords must pass in a 4-element array. Got array of length " + c.length);
+		MemorySegment.copy(c, 0, coords, UINT, 0, 4);
+		try {
+			return (int) GetSeqIndexFromCoords.invokeExact(experiment, coords);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int[] Lim_GetCoordsFromSeqIndex(final int uiSeqIdx) {
+		try {
+			GetCoordsFromSeqIndex.invokeExact(experiment, uiSeqIdx, coords);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return coords.toArray(UINT);
+	}
+
+	@Override
+	public int Lim_FileGetImageData(final int hFile, final int uiSeqIndex, final ByteBuffer buffer, final LocalMetadata pImgInfo) {
+		if (!buffer.isDirect()) throw new IllegalArgumentException("The ByteBuffer must be a direct buffer");
+		final ByteBuffer all = buffer.duplicate();
+		all.clear();
+		return getImageData(hFile, uiSeqIndex, MemorySegment.ofBuffer(all), pImgInfo);
+	}
+
+	/**
+	 * Decodes a frame straight into a memory segment.
+	 *
+	 * @param hFile the file handle
+	 * @param uiSeqIndex the sequence index
+	 * @param dst the destination, at least {@link Picture#uiSize} bytes (must be native memory)
+	 * @param pImgInfo updates the information about the relative timestamp and the XYZ
+	 * position of the microscope stage for the specified {@code uiSeqIndex} into this object
+	 * @return LIMRESULT, an error-checking value for whether the native call was successful
+	 */
+	public int getImageData(final int hFile, final int uiSeqIndex, final MemorySegment dst, final LocalMetadata pImgInfo) {
+		if (pictureData.equals(MemorySegment.NULL))
+			throw new IllegalStateException("Lim_InitPicture has not been called");
+		if (!dst.isNative() || dst.byteSize() < picture.get(ValueLayout.JAVA_LONG, PICTURE_SIZE))
+			throw new IllegalArgumentException("The destination must be native memory of at least uiSize bytes");
+
+		// let the library write the pixels into dst
+		picture.set(ValueLayout.ADDRESS, PICTURE_DATA, dst);
+		final int ret;
+		try {
+			ret = (int) FileGetImageData.invokeExact(hFile, uiSeqIndex, picture, localMetadata);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		} finally {
+			picture.set(ValueLayout.ADDRESS, PICTURE_DATA, pictureData);
+		}
+		if (ret == 0 && pImgInfo != null) readLocalMetadata(pImgInfo);
+		return ret;
+	}
+
+	/**
+	 * Calls Lim_FileGetImageRectData, which decodes the image scaled to
+	 * {@code totalW x totalH} and writes the {@code (x, y, w, h)} rectangle of it.
+	 *
+	 * @param hFile the file handle
+	 * @param uiSeqIndex the sequence index
+	 * @param totalW the width of the whole (scaled) image
+	 * @param totalH the height of the whole (scaled) image
+	 * @param x the x offset of the rectangle in the scaled image
+	 * @param y the y offset of the rectangle in the scaled image
+	 * @param w the width of the rectangle
+	 * @param h the height of the rectangle
+	 * @param dst the destination (must be native memory)
+	 * @param lineSize the number of bytes in a line of the destination
+	 * @param stretchMode one of the ND2SDK.LIMSTRETCH_* constants
+	 * @param pImgInfo updates the timestamp and the XYZ position for the {@code uiSeqIndex}, may be {@code null}
+	 * @return LIMRESULT, an error-checking value for whether the native call was successful
+	 */
+	public int getImageRectData(final int hFile, final int uiSeqIndex, final int totalW, final int totalH,
+			final int x, final int y, final int w, final int h, final MemorySegment dst, final int lineSize,
+			final int stretchMode, final LocalMetadata pImgInfo) {
+		if (!dst.isNative() || dst.byteSize() < (long) lineSize * h)
+			throw new IllegalArgumentException("The destination must be native memory of at least lineSize * h bytes");
+		final int ret;
+		try {
+			ret = (int) FileGetImageRectData.invokeExact(hFile, uiSeqIndex, totalW, totalH, x, y, w, h,
+					dst, lineSize, stretchMode, localMetadata);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+		if (ret == 0 && pImgInfo != null) readLocalMetadata(pImgInfo);
+		return ret;
+	}
+
+	/**
+	 * Same as {@link VolumeReader#readVolume(VolumeReader.Ranges, String, ByteBuffer)}, with a
+	 * memory segment as the destination, which can be larger than 2 GB.
+	 *
+	 * @param reader the reader of the file
+	 * @param ranges the part of the file
+	 * @param layout the order of the axes, e.g., {@link VolumeReader#LAYOUT_CZYX}
+	 * @param dst the destination, at least {@link VolumeReader#volumeBytes(VolumeReader.Ranges, String)} bytes,
+	 * which is written by the threads of the reader, so it cannot be from a confined arena
+	 * @return {@code dst}
+	 * @throws IOException if the ranges are not valid or a frame cannot be read
+	 */
+	public static MemorySegment readVolume(final VolumeReader reader, final VolumeReader.Ranges ranges,
+			final String layout, final MemorySegment dst) throws IOException {
+		reader.read(ranges, layout, dst.byteSize(), new VolumeReader.PlaneTarget() {
+			@Override
+			public ByteBuffer plane(final long offset, final int length) {
+				return dst.asSlice(offset, length).asByteBuffer();
+			}
+		});
+		return dst;
+	}
+
+	@Override
+	public int Lim_FileGetImageRectData(final int hFile, final int uiSeqIndex, final int uiDstTotalW, final int uiDstTotalH,
+			final int uiDstX, final int uiDstY, final int uiDstW, final int uiDstH, final ByteBuffer buffer,
+			final int uiDstLineSize, final int iStretchMode, final LocalMetadata pImgInfo) {
+		if (!buffer.isDirect()) throw new IllegalArgumentException("The ByteBuffer must be a direct buffer");
+		final ByteBuffer all = buffer.duplicate();
+		all.clear();
+		return getImageRectData(hFile, uiSeqIndex, uiDstTotalW, uiDstTotalH, uiDstX, uiDstY, uiDstW, uiDstH,
+				MemorySegment.ofBuffer(all), uiDstLineSize, iStretchMode, pImgInfo);
+	}
+
+	@Override
+	public int Lim_FileGetImageDataStats(final int hFile, final int uiSeqIndex, final ByteBuffer buffer,
+			final LocalMetadata pImgInfo, final int bpcSignificant, final double[] min, final double[] max,
+			final double[] sum, final double[] histRange, final long[] histogram) {
+		final int ret = Lim_FileGetImageData(hFile, uiSeqIndex, buffer, pImgInfo);
+		if (ret != 0) return ret;
+
+		final int width = getInt(picture, LIMPICTURE, "uiWidth");
+		final int height = getInt(picture, LIMPICTURE, "uiHeight");
+		final int comp = getInt(picture, LIMPICTURE, "uiComponents");
+		final int bpc = getInt(picture, LIMPICTURE, "uiBitsPerComp");
+		final int lineSize = getInt(picture, LIMPICTURE, "uiWidthBytes");
+		final int numBins = histogram.length / comp;
+		final int significant = bpcSignificant > 0 && bpcSignificant <= Math.min(bpc, 16) ? bpcSignificant : bpc;
+		final ByteBuffer b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+		// the same statistics and binning as ND2SDK.cpp, in one pass over the frame
+		for (int c = 0; c < comp; c++) {
+			double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY, s = 0.0;
+			if (bpc == 32) {
+				final FloatHistogram range = new FloatHistogram();
+				for (int y = 0; y < height; y++) {
+					final int start = y * lineSize + c * 4;
+					double rowLo = Double.POSITIVE_INFINITY, rowHi = Double.NEGATIVE_INFINITY;
+					for (int x = 0, i = start; x < width; x++, i += comp * 4) {
+						final float v = b.getFloat(i);
+						if (!Float.isFinite(v)) continue;
+						if (v < rowLo) rowLo = v;
+						if (v > rowHi) rowHi = v;
+						s += v;
+					}
+					if (rowLo > rowHi) continue; // no finite values
+					lo = Math.min(lo, rowLo);
+					hi = Math.max(hi, rowHi);
+					range.grow(histogram, c * numBins, numBins, rowLo, rowHi);
+					final double scale = range.width > 0 ? 1.0 / range.width : 0.0;
+					for (int x = 0, i = start; x < width; x++, i += comp * 4) {
+						final float v = b.getFloat(i);
+						if (!Float.isFinite(v)) continue;
+						final double bin = (v - range.lo) * scale;
+						histogram[c * numBins + (bin > 0 ? (int) Math.min(bin, numBins - 1) : 0)]++;
+					}
+				}
+				if (range.empty) lo = hi = 0.0;
+				histRange[2 * c] = range.empty ? 0.0 : range.lo;
+				histRange[2 * c + 1] = range.empty ? 0.0 : range.lo + numBins * range.width;
+			} else {
+				final int maxValue = (1 << significant) - 1;
+				final double scale = (double) numBins / (maxValue + 1);
+				for (int y = 0; y < height; y++) {
+					for (int x = 0, i = y * lineSize + c * (bpc / 8); x < width; x++, i += comp * (bpc / 8)) {
+						final int v = bpc == 8 ? b.get(i) & 0xFF : b.getShort(i) & 0xFFFF;
+						if (v < lo) lo = v;
+						if (v > hi) hi = v;
+						s += v;
+						histogram[c * numBins + (int) (Math.min(v, maxValue) * scale)]++;
+					}
+				}
+				histRange[2 * c] = 0.0;
+				histRange[2 * c + 1] = (double) (1 << significant);
+			}
+			min[c] = lo;
+			max[c] = hi;
+			sum[c] = s;
+		}
+		return ret;
+	}
+
+	/**
+	 * The range of the histogram of a float component, see FloatHistogram in ND2SDK.cpp.
+	 */
+	private static class FloatHistogram {
+		double lo, width;
+		boolean empty = true;
+
+		/**
+		 * Grows the range to include [vmin, vmax], merging pairs of bins whenever it is doubled.
+		 */
+		void grow(final long[] h, final int offset, final int numBins, final double vmin, final double vmax) {
+			if (empty) {
+				lo = vmin;
+				width = (vmax - vmin) / numBins;
+				empty = false;
+				return;
+			}
+			if (width == 0) {
+				if (vmin == lo && vmax == lo) return;
+				// all previous values are equal to lo, move them to their bin in the new range
+				final double newLo = Math.min(vmin, lo), newHi = Math.max(vmax, lo);
+				final long count = h[offset];
+				h[offset] = 0;
+				h[offset + (int) Math.min((lo - newLo) / ((newHi - newLo) / numBins), numBins - 1)] = count;
+				lo = newLo;
+				width = (newHi - newLo) / numBins;
+				return;
+			}
+			while (vmax > lo + numBins * width) {
+				for (int i = 0; i < numBins; i++) {
+					final long count = h[offset + i];
+					h[offset + i] = 0;
+					h[offset + i / 2] += count;
+				}
+				width *= 2;
+			}
+			while (vmin < lo) {
+				for (int i = numBins - 1; i >= 0; i--) {
+					final long count = h[offset + i];
+					h[offset + i] = 0;
+					h[offset + (numBins + i) / 2] += count;
+				}
+				lo -= numBins * width;
+				width *= 2;
+			}
+		}
+	}
+
+	private void readLocalMetadata(final LocalMetadata pImgInfo) {
+		pImgInfo.dTimeMSec = localMetadata.get(DOUBLE, LOCAL_TIME);
+		pImgInfo.dXPos = localMetadata.get(DOUBLE, LOCAL_X);
+		pImgInfo.dYPos = localMetadata.get(DOUBLE, LOCAL_Y);
+		pImgInfo.dZPos = localMetadata.get(DOUBLE, LOCAL_Z);
+	}
+
+	private static int getInt(final MemorySegment s, final MemoryLayout layout, final String name) {
+		return s.get(ValueLayout.JAVA_INT, offset(layout, name));
+	}
+
+	private static double getDouble(final MemorySegment s, final MemoryLayout layout, final String name) {
+		return s.get(ValueLayout.JAVA_DOUBLE, offset(layout, name));
+	}
+
+	/** Reads a null-terminated wchar_t[] field */
+	private static String getString(final MemorySegment s, final MemoryLayout layout, final String name) {
+		final MemoryLayout field = layout.select(PathElement.groupElement(name));
+		final long start = offset(layout, name);
+		final long length = field.byteSize() / WCHAR_SIZE;
+		int n = 0;
+		while (n < length) {
+			final int ch = WCHAR_SIZE == 2
+					? s.get(ValueLayout.JAVA_SHORT, start + (long) n * 2)
+					: s.get(ValueLayout.JAVA_INT, start + (long) n * 4);
+			if (ch == 0) break;
+			n++;
+		}
+		final byte[] bytes = new byte[n * WCHAR_SIZE];
+		MemorySegment.copy(s, ValueLayout.JAVA_BYTE, start, bytes, 0, bytes.length);
+		return new String(bytes, WCHAR_CHARSET);
+	}
+
+	private static RuntimeException rethrow(final Throwable t) {
+		if (t instanceof RuntimeException) return (RuntimeException) t;
+		if (t instanceof Error) throw (Error) t;
+		return new IllegalStateException(t);
+	}
+}
@@ -0,0 +1,28 @@
+/** 
+ * The LIMPICTURE struct found in nd2ReadSDK.h
+ * <pre>
+ * int uiWidth;        // Width of the image, in pixels
+ * int uiHeight;       // Height of the image, in pixels
+ * int uiBitsPerComp;  // Number of bits per component (8, 10, 12, 14, 16). For binary images, use 32 bits 
+ * int uiComponents;   // Number of components in every pixel (any number up to 160 1:mono, 3:RGB)
+ * int uiWidthBytes;   // Aligned to 4-byte (like windows BITMAP)
+ * int uiSize;         // Size of the image in memory (= uiWidthBytes * uiHeight)
+ * long pImageData;    // Java version of a void pointer to the image data
+ * </pre>  
+ */
+class Picture {
+	/** Width of the image, in pixels. */
+	int uiWidth;
+	/** Height of the image, in pixels. */
+	int uiHeight;
+	/** Number of bits per component (8, 10, 12, 14, 16). For binary images, use 32 bits. */
+	int uiBitsPerComp;
+	/** Number of components in every pixel (any number up to 160 1:mono, 3:RGB). */
+	int uiComponents;
+	/** Aligned to 4-byte (like windows BITMAP). */
+	int uiWidthBytes;
+	/** Size of the image in memory (= uiWidthBytes * uiHeight). */
+	int uiSize;
+	/** Java version of a void pointer to the image data. */
+	long pImageData;
+}
@@ -0,0 +1,22 @@
+/** 
+ * The LIMPICTUREPLANE_DESC struct found in nd2ReadSDK.h
+ * <pre>
+ * int uiCompCount;    // Number of physical components
+ * int uiColorRGB;     // RGB color for display 0xBBGGRR
+ * String wszName;     // Name for display
+ * String wszOCName;   // Name of the Optical Configuration
+ * double dEmissionWL; // The emission wavelength
+ * </pre>
+ */
+class PicturePlaneDesc {
+	/** Number of physical components */
+	int uiCompCount;
+	/** RGB color for display 0xBBGGRR */
+	int uiColorRGB;
+	/** Name for display */
+	String wszName;  
+	/** Name of the Optical Configuration */
+	String wszOCName;
+	/** The emission wavelength */
+	double dEmissionWL;
+}
@@ -0,0 +1,118 @@
+import java.util.Arrays;
+
+/**
+ * Lossless coding of a 16-bit plane for {@link CompressedStack}.
+ *
+ * <p>Every pixel is predicted from the mean of its left and upper neighbours (from
+ * the upper neighbour in the first column and from the left neighbour in the first
+ * row), and the zigzag-coded prediction errors are bit-packed in blocks of
+ * {@link #BLOCK_SIZE} pixels. Every block starts with one byte that holds the
+ * number of bits per pixel in the block, so a block of a flat region is a single
+ * zero byte and a block of a noisy region takes only as many bits as its noise.</p>
+ */
+final class PlaneCodec {
+
+	/** The number of pixels in a block that shares a bit width */
+	static final int BLOCK_SIZE = 64;
+
+	private PlaneCodec() {}
+
+	/**
+	 * Returns the encoded {@code width x height} plane.
+	 */
+	static byte[] encode(final short[] plane, final int width, final int height) {
+		final int n = width * height;
+		final byte[] out = new byte[2 * n + (n + BLOCK_SIZE - 1) / BLOCK_SIZE];
+		final int[] codes = new int[BLOCK_SIZE];
+
+		// the zigzag-coded prediction errors of a block, then the block bit-packed
+		int pos = 0, x = 0;
+		for (int start = 0; start < n; start += BLOCK_SIZE) {
+			final int end = Math.min(n, start + BLOCK_SIZE);
+			int or = 0;
+			for (int i = start; i < end; i++) {
+				final int prediction;
+				if (i < width) {
+					prediction = i == 0 ? 0 : plane[i - 1];
+				} else if (x == 0) {
+					prediction = plane[i - width];
+				} else {
+					prediction = ((plane[i - 1] & 0xFFFF) + (plane[i - width] & 0xFFFF)) >> 1;
+				}
+				if (++x == width) x = 0;
+				final int code = zigzag((short) (plane[i] - prediction));
+				codes[i - start] = code;
+				or |= code;
+			}
+			final int bits = 32 - Integer.numberOfLeadingZeros(or);
+			out[pos++] = (byte) bits;
+			if (bits == 0) continue;
+			long acc = 0;
+			int numBits = 0;
+			for (int i = 0; i < end - start; i++) {
+				acc |= (long) codes[i] << numBits;
+				numBits += bits;
+				while (numBits >= 8) {
+					out[pos++] = (byte) acc;
+					acc >>>= 8;
+					numBits -= 8;
+				}
+			}
+			if (numBits > 0) out[pos++] = (byte) acc;
+		}
+		return Arrays.copyOf(out, pos);
+	}
+
+	/**
+	 * Decodes a plane that was encoded with {@link #encode(short[], int, int)} into {@code dst}.
+	 */
+	static void decode(final byte[] data, final short[] dst, final int width, final int height) {
+		final int n = width * height;
+
+		// unpack the prediction errors
+		int pos = 0;
+		for (int start = 0; start < n; start += BLOCK_SIZE) {
+			final int end = Math.min(n, start + BLOCK_SIZE);
+			final int bits = data[pos++];
+			if (bits == 0) {
+				Arrays.fill(dst, start, end, (short) 0);
+				continue;
+			}
+			final int mask = (1 << bits) - 1;
+			long acc = 0;
+			int numBits = 0;
+			for (int i = start; i < end; i++) {
+				while (numBits < bits) {
+					acc |= (data[pos++] & 0xFFL) << numBits;
+					numBits += 8;
+				}
+				final int z = (int) acc & mask;
+				acc >>>= bits;
+				numBits -= bits;
+				dst[i] = (short) ((z >>> 1) ^ -(z & 1));
+			}
+		}
+
+		// add the predictions, in the order in which they were made
+		for (int y = 0; y < height; y++) {
+			final int row = y * width;
+			if (y == 0) {
+				for (int i = 1; i < width; i++) {
+					dst[i] += dst[i - 1];
+				}
+			} else {
+				dst[row] += dst[row - width];
+				for (int i = row + 1; i < row + width; i++) {
+					dst[i] = (short) (dst[i] + (((dst[i - 1] & 0xFFFF) + (dst[i - width] & 0xFFFF)) >> 1));
+				}
+			}
+		}
+	}
+
+	/**
+	 * The zigzag code of a prediction error, which maps small errors of either sign to small numbers.
+	 */
+	private static int zigzag(final short error) {
+		return ((error << 1) ^ (error >> 31)) & 0xFFFF;
+	}
+}
@@ -0,0 +1,65 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Measures how long {@link FrameRenderer} takes to render a synthetic 12-bit-in-16
+ * frame with 1, 2 and 4 channels, and a 32-bit float frame, into RGBA.
+ *
+ * <p>Run it once with {@code --add-modules jdk.incubator.vector} and once without
+ * it to compare the vectorized and the scalar implementations, e.g.,</p>
+ * <pre>
+ * java --add-modules jdk.incubator.vector RenderBenchmark [width] [height]
+ * java RenderBenchmark [width] [height]
+ * </pre>
+ */
+public class RenderBenchmark {
+
+	public static void main(String[] args) {
+		final int width = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+		final int height = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+
+		System.out.println(String.format("%s, %d threads, %d x %d pixels",
+				FrameRenderer.VECTORIZED ? "jdk.incubator.vector" : "scalar",
+				Runtime.getRuntime().availableProcessors(), width, height));
+
+		for (int channels : new int[] {1, 2, 4}) {
+			run(width, height, channels, 16);
+		}
+		run(width, height, 1, 32);
+	}
+
+	private static void run(final int width, final int height, final int channels, final int bpc) {
+		final int lineBytes = ((width * channels * bpc / 8) + 3) / 4 * 4;
+		final ByteBuffer src = ByteBuffer.allocateDirect(lineBytes * height).order(ByteOrder.LITTLE_ENDIAN);
+		final Random random = new Random(1);
+		for (int y = 0; y < height; y++) {
+			src.position(y * lineBytes);
+			for (int i = 0; i < width * channels; i++) {
+				if (bpc == 16) {
+					src.putShort((short) random.nextInt(4096));
+				} else {
+					src.putFloat(random.nextFloat());
+				}
+			}
+		}
+
+		final FrameRenderer renderer = new FrameRenderer(width, height, channels, bpc, lineBytes);
+		final int[] colors = {0x0000FF, 0x00FF00, 0xFF0000, 0xFF00FF};
+		for (int c = 0; c < channels; c++) {
+			renderer.setColor(c, colors[c]);
+			renderer.setDisplayRange(c, bpc == 16 ? 100 : 0.1, bpc == 16 ? 4000 : 0.9);
+		}
+		final ByteBuffer dst = ByteBuffer.allocateDirect(width * height * 4);
+
+		// warm up, then measure
+		for (int i = 0; i < 20; i++) renderer.render(src, dst, true);
+		final int n = 50;
+		final long start = System.nanoTime();
+		for (int i = 0; i < n; i++) renderer.render(src, dst, true);
+		final double ms = (System.nanoTime() - start) * 1e-6 / n;
+
+		System.out.println(String.format("%d channel(s), %2d-bit: %7.2f ms/frame, %7.1f Mpixel/s",
+				channels, bpc, ms, (double) width * height / ms * 1e-3));
+	}
+}
@@ -31,11 +31,11 @@ public class Test {
 			// example for converting between Coords and SeqIndex
 			System.out.println("------- SeqIndex -------");
 			final int[] coordsIn = {1, 0, 0, 0};
-			final int seqIndex = nd2.Lim_GetSeqIndexFromCoords(coordsIn);
+			final int seqIndex = nd2.getSeqIndexFromCoords(coordsIn);
 			System.out.println("seqIndex: " + seqIndex);
 
 			System.out.println("-------- Coords --------");
-			final int[] coordsOut = nd2.Lim_GetCoordsFromSeqIndex(seqIndex);
+			final int[] coordsOut = nd2.getCoordsFromSeqIndex(seqIndex);
 			System.out.println("time....... " + coordsOut[0]);
 			System.out.println("multipoint. " + coordsOut[1]);
 			System.out.println("z.......... " + coordsOut[2]);
@@ -0,0 +1,35 @@
+/** 
+ * The LIMTEXTINFO struct found in nd2ReadSDK.h 
+ * <pre>
+ * String wszImageID;
+ * String wszType;
+ * String wszGroup;
+ * String wszSampleID;
+ * String wszAuthor;
+ * String wszDescription;
+ * String wszCapturing;
+ * String wszSampling;
+ * String wszLocation;
+ * String wszDate;
+ * String wszConclusion;
+ * String wszInfo1;
+ * String wszInfo2;
+ * String wszOptics;
+ * </pre>
+ */
+class TextInfo {
+	String wszImageID;
+	String wszType;
+	String wszGroup;
+	String wszSampleID;
+	String wszAuthor;
+	String wszDescription;
+	String wszCapturing;
+	String wszSampling;
+	String wszLocation;
+	String wszDate;
+	String wszConclusion;
+	String wszInfo1;
+	String wszInfo2;
+	String wszOptics;
+}
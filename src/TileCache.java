@@ -0,0 +1,413 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads rectangles of the frames of an ND2 file tile by tile, and keeps the most
+ * recently used tiles in memory.
+ *
+ * <p>The tiles are aligned to the tiling of the file ({@link Attributes#uiTileWidth} x
+ * {@link Attributes#uiTileHeight}), so that a tile is read with
+ * {@link ND2SDK#getSeqRectBytes(int, int, int, int, int, ByteBuffer)} without
+ * decoding any other tile of the file. Only the tiles that intersect a requested
+ * rectangle are read, the ones that are not in the cache are decoded in parallel,
+ * and every request returns a {@link Report} of the tiles and bytes that it
+ * touched.</p>
+ *
+ * <p>A file that is not tiled, or whose tiles are larger than the cache, is not
+ * cached: every rectangle is read directly, so that a small rectangle of a large
+ * frame does not decode and copy the whole frame.</p>
+ */
+public class TileCache implements Closeable {
+
+	/**
+	 * The tiles and bytes that a call to {@link TileCache#read(int, int, int, int, int, ByteBuffer)} touched.
+	 */
+	public static class Report {
+		/** The number of tiles that intersect the rectangle (0 if the rectangle was read directly) */
+		public int tiles;
+
+		/** The number of tiles that were decoded (the others were in the cache) */
+		public int decodedTiles;
+
+		/** The number of bytes of the tiles (or of the rectangle that was read directly) that were decoded */
+		public long decodedBytes;
+
+		/** The number of bytes of the rectangle that were copied to the destination */
+		public long copiedBytes;
+
+		@Override
+		public String toString() {
+			return String.format("%d tiles (%d decoded, %d bytes), %d bytes copied",
+					tiles, decodedTiles, decodedBytes, copiedBytes);
+		}
+	}
+
+	/** The total number of tiles that were requested */
+	public final AtomicLong tilesRequested = new AtomicLong();
+
+	/** The total number of tiles that were decoded */
+	public final AtomicLong tilesDecoded = new AtomicLong();
+
+	/** The total number of bytes of the tiles that were decoded */
+	public final AtomicLong bytesDecoded = new AtomicLong();
+
+	/** The width of a tile, in pixels */
+	public final int tileWidth;
+
+	/** The height of a tile, in pixels */
+	public final int tileHeight;
+
+	private final ND2SDK nd2;
+	private final boolean tiled;
+	private final long tileBytes;
+	private final int tilesX;
+	private final int tilesY;
+	private final int pixelSize;
+	private final List<Reader> readers;
+	private final ArrayDeque<Reader> idleReaders;
+	private boolean closed = false;
+	private final ExecutorService executor;
+	private final LinkedHashMap<Long, Tile> cache = new LinkedHashMap<Long, Tile>(64, 0.75f, true);
+	private long cacheBytes = 0;
+	private long maxCacheBytes = 256L << 20;
+
+	/**
+	 * @param nd2 an ND2 file that was opened with {@link ND2SDK#initialize(String)} or
+	 * {@link ND2SDK#initializeMetadata(String)}, only its metadata is used
+	 * @param numThreads the number of threads (and open copies of the file) that decode tiles
+	 * @throws IOException if the file cannot be opened by the threads
+	 */
+	public TileCache(final ND2SDK nd2, final int numThreads) throws IOException {
+		if (numThreads < 1) throw new IllegalArgumentException("numThreads must be >= 1");
+		if (nd2.hFile == 0) throw new IOException("An ND2 file has not been initialized yet");
+		this.nd2 = nd2;
+		tiled = nd2.attribs.uiTileWidth > 0 && nd2.attribs.uiTileHeight > 0;
+		tileWidth = tiled ? Math.min(nd2.attribs.uiTileWidth, nd2.width) : nd2.width;
+		tileHeight = tiled ? Math.min(nd2.attribs.uiTileHeight, nd2.height) : nd2.height;
+		tilesX = (nd2.width + tileWidth - 1) / tileWidth;
+		tilesY = (nd2.height + tileHeight - 1) / tileHeight;
+		pixelSize = nd2.attribs.uiComp * nd2.attribs.uiBpcInMemory / 8;
+		tileBytes = (long) nd2.rectLineSize(tileWidth) * tileHeight;
+
+		final List<Reader> readers = new ArrayList<Reader>(numThreads);
+		for (int i = 0; i < numThreads; i++) {
+			readers.add(new Reader(new ND2SDK(nd2.getBackendName())));
+		}
+		this.readers = Collections.unmodifiableList(readers);
+		idleReaders = new ArrayDeque<Reader>(readers);
+		executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "TileCache");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			for (Reader reader : readers) {
+				reader.nd2.initializeMetadata(nd2.filename);
+			}
+		} catch (IOException e) {
+			release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sets the maximum number of bytes of the tiles in the cache (default 256 MB).
+	 * If a tile is larger than this then the rectangles are read directly.
+	 */
+	public void setMaxCacheBytes(final long maxCacheBytes) {
+		synchronized (cache) {
+			this.maxCacheBytes = maxCacheBytes;
+			trimCache();
+		}
+	}
+
+	/**
+	 * The number of bytes of the tiles in the cache.
+	 */
+	public long cacheBytes() {
+		synchronized (cache) {
+			return cacheBytes;
+		}
+	}
+
+	/**
+	 * Reads a rectangle of a frame into {@code dst}, with the same format as
+	 * {@link ND2SDK#getSeqRectBytes(int, int, int, int, int, ByteBuffer)}: the lines
+	 * of the rectangle are {@link ND2SDK#rectLineSize(int) rectLineSize(w)} bytes apart.
+	 *
+	 * @param seqIndex the sequence index
+	 * @param x the x offset of the rectangle, in pixels
+	 * @param y the y offset of the rectangle, in pixels
+	 * @param w the width of the rectangle, in pixels
+	 * @param h the height of the rectangle, in pixels
+	 * @param dst a ByteBuffer with at least {@code rectLineSize(w) * h} bytes
+	 * @return the tiles and bytes that were touched
+	 * @throws IOException if the rectangle is outside of the image, a tile cannot be read or
+	 * the cache has been closed
+	 */
+	public Report read(final int seqIndex, final int x, final int y, final int w, final int h, final ByteBuffer dst) throws IOException {
+		synchronized (idleReaders) {
+			if (closed) throw new IOException("The TileCache has been closed");
+		}
+		if (seqIndex < 0 || seqIndex >= nd2.attribs.uiSequenceCount)
+			throw new IOException(String.format("Invalid uiSeqIndex value of %d. "
+					+ "Value must be >= 0 and < %d", seqIndex, nd2.attribs.uiSequenceCount));
+		if (x < 0 || y < 0 || w < 1 || h < 1 || x + w > nd2.width || y + h > nd2.height)
+			throw new IOException(String.format("The rectangle (%d, %d, %d, %d) is not inside of the "
+					+ "%d x %d image", x, y, w, h, nd2.width, nd2.height));
+		final int lineSize = nd2.rectLineSize(w);
+		if (dst.capacity() < (long) lineSize * h)
+			throw new IOException("The ByteBuffer must have at least " + ((long) lineSize * h) + " bytes");
+
+		final Report report = new Report();
+		if (!cacheable()) {
+			readDirect(seqIndex, x, y, w, h, lineSize, dst, report);
+			return report;
+		}
+
+		final List<Callable<Tile>> misses = new ArrayList<Callable<Tile>>();
+		for (int ty = y / tileHeight; ty <= (y + h - 1) / tileHeight; ty++) {
+			for (int tx = x / tileWidth; tx <= (x + w - 1) / tileWidth; tx++) {
+				report.tiles++;
+				final long key = (long) seqIndex * tilesX * tilesY + ty * tilesX + tx;
+				final Tile tile;
+				synchronized (cache) {
+					tile = cache.get(key);
+				}
+				if (tile != null) {
+					copy(tile, x, y, w, h, lineSize, dst);
+				} else {
+					final int tileX = tx * tileWidth, tileY = ty * tileHeight;
+					misses.add(new Callable<Tile>() {
+						@Override
+						public Tile call() throws IOException {
+							return decode(key, seqIndex, tileX, tileY);
+						}
+					});
+				}
+			}
+		}
+		tilesRequested.addAndGet(report.tiles);
+
+		// decode the missing tiles in parallel, and copy each one as it is available
+		if (!misses.isEmpty()) {
+			final CompletionService<Tile> decoded = new ExecutorCompletionService<Tile>(executor);
+			try {
+				for (Callable<Tile> miss : misses) {
+					decoded.submit(miss);
+				}
+				for (int i = 0; i < misses.size(); i++) {
+					final Tile tile = decoded.take().get();
+					copy(tile, x, y, w, h, lineSize, dst);
+					report.decodedTiles++;
+					report.decodedBytes += tile.data.length;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading the tiles", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new IOException(e.getCause());
+			} catch (RejectedExecutionException e) {
+				throw new IOException("The TileCache has been closed", e);
+			}
+		}
+		report.copiedBytes = (long) w * h * pixelSize;
+		dst.order(ByteOrder.LITTLE_ENDIAN);
+		return report;
+	}
+
+	/**
+	 * Closes the files that the threads opened and empties the cache. A read that is
+	 * in progress is finished first, and the reads that start afterwards fail.
+	 */
+	@Override
+	public void close() {
+		release();
+	}
+
+	private void release() {
+		synchronized (idleReaders) {
+			closed = true;
+			idleReaders.clear();
+			idleReaders.notifyAll();
+		}
+		executor.shutdownNow();
+		// a reader that is in use is closed once its read returns
+		for (Reader reader : readers) {
+			synchronized (reader) {
+				reader.nd2.deinitialize();
+			}
+		}
+		synchronized (cache) {
+			cache.clear();
+			cacheBytes = 0;
+		}
+	}
+
+	/**
+	 * Whether the tiles are cached, i.e., the file is tiled and a tile fits in the cache.
+	 */
+	private boolean cacheable() {
+		synchronized (cache) {
+			return tiled && tileBytes <= maxCacheBytes && tileBytes <= Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Reads a rectangle with one of the readers, directly into {@code dst} if it is direct.
+	 */
+	private void readDirect(final int seqIndex, final int x, final int y, final int w, final int h,
+			final int lineSize, final ByteBuffer dst, final Report report) throws IOException {
+		final Reader reader = takeReader();
+		try {
+			synchronized (reader) {
+				if (dst.isDirect()) {
+					reader.nd2.getSeqRectBytes(seqIndex, x, y, w, h, dst);
+				} else {
+					reader.nd2.getSeqRectBytes(seqIndex, x, y, w, h, reader.buffer(lineSize * h));
+					dst.put(0, reader.buffer, 0, lineSize * h);
+				}
+			}
+		} finally {
+			returnReader(reader);
+		}
+		bytesDecoded.addAndGet((long) lineSize * h);
+		report.decodedBytes = (long) lineSize * h;
+		report.copiedBytes = (long) w * h * pixelSize;
+		dst.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private Reader takeReader() throws IOException {
+		synchronized (idleReaders) {
+			try {
+				while (!closed && idleReaders.isEmpty()) {
+					idleReaders.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for a reader", e);
+			}
+			if (closed) throw new IOException("The TileCache has been closed");
+			return idleReaders.pop();
+		}
+	}
+
+	private void returnReader(final Reader reader) {
+		synchronized (idleReaders) {
+			if (closed) return;
+			idleReaders.push(reader);
+			idleReaders.notify();
+		}
+	}
+
+	/**
+	 * Decodes a tile with one of the readers and puts it in the cache.
+	 */
+	private Tile decode(final long key, final int seqIndex, final int tileX, final int tileY) throws IOException {
+		final int w = Math.min(tileWidth, nd2.width - tileX);
+		final int h = Math.min(tileHeight, nd2.height - tileY);
+		// cacheable() has checked that a tile fits in an array
+		final int lineSize = nd2.rectLineSize(w);
+		final int size = (int) ((long) lineSize * h);
+		final Reader reader = takeReader();
+		final Tile tile;
+		try {
+			synchronized (reader) {
+				reader.nd2.getSeqRectBytes(seqIndex, tileX, tileY, w, h, reader.buffer(size));
+				final byte[] data = new byte[size];
+				reader.buffer.get(0, data);
+				tile = new Tile(tileX, tileY, w, h, lineSize, data);
+			}
+		} finally {
+			returnReader(reader);
+		}
+		tilesDecoded.incrementAndGet();
+		bytesDecoded.addAndGet(tile.data.length);
+
+		synchronized (cache) {
+			final Tile previous = cache.put(key, tile);
+			if (previous != null) cacheBytes -= previous.data.length;
+			cacheBytes += tile.data.length;
+			trimCache();
+		}
+		return tile;
+	}
+
+	/**
+	 * Copies the part of a tile that is inside of the {@code (x, y, w, h)} rectangle to {@code dst}.
+	 */
+	private void copy(final Tile tile, final int x, final int y, final int w, final int h,
+			final int lineSize, final ByteBuffer dst) {
+		final int x0 = Math.max(x, tile.x), x1 = Math.min(x + w, tile.x + tile.width);
+		final int y0 = Math.max(y, tile.y), y1 = Math.min(y + h, tile.y + tile.height);
+		final int length = (x1 - x0) * pixelSize;
+		for (int row = y0; row < y1; row++) {
+			dst.put((row - y) * lineSize + (x0 - x) * pixelSize, tile.data,
+					(row - tile.y) * tile.lineSize + (x0 - tile.x) * pixelSize, length);
+		}
+	}
+
+	private void trimCache() {
+		final Iterator<Map.Entry<Long, Tile>> it = cache.entrySet().iterator();
+		while (cacheBytes > maxCacheBytes && it.hasNext()) {
+			cacheBytes -= it.next().getValue().data.length;
+			it.remove();
+		}
+	}
+
+	/**
+	 * The pixels of a decoded tile.
+	 */
+	private static class Tile {
+		final int x, y, width, height, lineSize;
+		final byte[] data;
+
+		Tile(final int x, final int y, final int width, final int height, final int lineSize, final byte[] data) {
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.lineSize = lineSize;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * An open copy of the file and the buffer that it decodes tiles into.
+	 */
+	private static class Reader {
+		final ND2SDK nd2;
+		ByteBuffer buffer;
+
+		Reader(final ND2SDK nd2) {
+			this.nd2 = nd2;
+		}
+
+		ByteBuffer buffer(final int size) {
+			if (buffer == null || buffer.capacity() < size) buffer = ByteBuffer.allocateDirect(size);
+			return buffer;
+		}
+	}
+}
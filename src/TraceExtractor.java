@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts the mean intensity of a set of {@link TraceRoi}s in every time point
+ * of one channel, Z slice and multipoint position of an ND2 file.
+ *
+ * <p>The pixels of every ROI are converted into a list of buffer offsets once,
+ * before any frame is read. When the bounding box of all ROIs is a small part of
+ * the image (see {@link #setRectReadFraction(double)}) only the bounding box is
+ * read, with {@link ND2SDK#getSeqRectBytes(int, int, int, int, int, ByteBuffer)},
+ * otherwise the whole frame is read.</p>
+ *
+ * <p>The time points are shared out to a number of threads and every thread opens
+ * the file with its own {@link ND2SDK} object, so that no frame is read twice and
+ * nothing is allocated per frame.</p>
+ */
+public class TraceExtractor {
+
+	/** The time (in milliseconds, relative to the first frame) of every time point of the last extraction */
+	public double[] timestamps = new double[0];
+
+	/** Whether the last extraction read only the bounding box of the ROIs */
+	public boolean rectRead = false;
+
+	private final ND2SDK nd2;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private double rectReadFraction = 0.5;
+
+	/**
+	 * @param nd2 an ND2 file that was opened with {@link ND2SDK#initialize(String)} or
+	 * {@link ND2SDK#initializeMetadata(String)}, only its metadata is used
+	 */
+	public TraceExtractor(final ND2SDK nd2) {
+		this.nd2 = nd2;
+	}
+
+	/**
+	 * Sets the number of threads (and open copies of the file) that read frames.
+	 */
+	public void setNumThreads(final int numThreads) {
+		if (numThreads < 1) throw new IllegalArgumentException("numThreads must be >= 1");
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Only the bounding box of the ROIs is read when its area is at most this fraction
+	 * of the image area (default 0.5). Use 0 to always read whole frames and 1 to
+	 * always read the bounding box.
+	 */
+	public void setRectReadFraction(final double rectReadFraction) {
+		this.rectReadFraction = rectReadFraction;
+	}
+
+	/**
+	 * Returns the mean intensity of every ROI in every time point.
+	 *
+	 * @param rois the ROIs
+	 * @param channel the channel (component) index
+	 * @param z the Z slice index
+	 * @param point the multipoint index
+	 * @return {@code traces[roi][t]}, {@link Double#NaN} for an ROI that is outside of the image
+	 * @throws IOException if a frame cannot be read
+	 */
+	public double[][] extract(final List<TraceRoi> rois, final int channel, final int z, final int point) throws IOException {
+		if (nd2.hFile == 0)
+			throw new IOException("An ND2 file has not been initialized yet");
+		if (channel < 0 || channel >= nd2.numChannels)
+			throw new IOException(String.format("Invalid channel %d, the file has %d channels", channel, nd2.numChannels));
+		if (z < 0 || z >= nd2.numSlices)
+			throw new IOException(String.format("Invalid Z slice %d, the file has %d slices", z, nd2.numSlices));
+		if (point < 0 || point >= nd2.numPoints)
+			throw new IOException(String.format("Invalid point %d, the file has %d points", point, nd2.numPoints));
+
+		final int numFrames = nd2.numFrames;
+		final int numRois = rois.size();
+		final double[][] traces = new double[numRois][numFrames];
+		timestamps = new double[numFrames];
+		if (numRois == 0) return traces;
+
+		// the sequence index of every time point
+		final int[] seqIndex = new int[numFrames];
+		for (int t = 0; t < numFrames; t++) {
+			seqIndex[t] = nd2.getSeqIndexFromCoords(new int[] {t, point, z, 0});
+		}
+
+		// the bounding box of all ROIs, inside of the image
+		final int imageWidth = nd2.attribs.uiWidth, imageHeight = nd2.attribs.uiHeight;
+		int x0 = imageWidth, y0 = imageHeight, x1 = 0, y1 = 0;
+		for (TraceRoi roi : rois) {
+			x0 = Math.min(x0, Math.max(roi.x, 0));
+			y0 = Math.min(y0, Math.max(roi.y, 0));
+			x1 = Math.max(x1, Math.min(roi.x + roi.width, imageWidth));
+			y1 = Math.max(y1, Math.min(roi.y + roi.height, imageHeight));
+		}
+		if (x1 <= x0 || y1 <= y0) {
+			for (double[] trace : traces) Arrays.fill(trace, Double.NaN);
+			return traces;
+		}
+
+		rectRead = (double) (x1 - x0) * (y1 - y0) <= rectReadFraction * imageWidth * imageHeight;
+		final int bytesPerComp = nd2.attribs.uiBpcInMemory / 8;
+		final int pixelSize = nd2.numChannels * bytesPerComp;
+		final int originX = rectRead ? x0 : 0, originY = rectRead ? y0 : 0;
+		final int lineSize = rectRead ? nd2.rectLineSize(x1 - x0) : nd2.attribs.uiWidthBytes;
+
+		// the pixels of every ROI, as offsets into the buffer
+		final int[][] offsets = new int[numRois][];
+		for (int r = 0; r < numRois; r++) {
+			offsets[r] = rois.get(r).offsets(imageWidth, imageHeight, originX, originY,
+					lineSize, pixelSize, channel * bytesPerComp);
+		}
+
+		final int rectX = x0, rectY = y0, rectW = x1 - x0, rectH = y1 - y0;
+		final int bpc = nd2.attribs.uiBpcInMemory;
+		final AtomicInteger next = new AtomicInteger();
+		final int threads = Math.min(numThreads, numFrames);
+		final List<Callable<Void>> workers = new ArrayList<Callable<Void>>(threads);
+		for (int i = 0; i < threads; i++) {
+			workers.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					final ND2SDK reader = new ND2SDK(nd2.getBackendName());
+					try {
+						ByteBuffer buffer = null;
+						if (rectRead) {
+							reader.initializeMetadata(nd2.filename);
+							buffer = ByteBuffer.allocateDirect(lineSize * rectH).order(ByteOrder.LITTLE_ENDIAN);
+						} else {
+							reader.initialize(nd2.filename);
+						}
+						for (int t = next.getAndIncrement(); t < numFrames; t = next.getAndIncrement()) {
+							final ByteBuffer frame = rectRead
+									? reader.getSeqRectBytes(seqIndex[t], rectX, rectY, rectW, rectH, buffer)
+									: reader.getSeqBytes(seqIndex[t]);
+							timestamps[t] = reader.imgInfo.dTimeMSec;
+							for (int r = 0; r < numRois; r++) {
+								traces[r][t] = mean(frame, offsets[r], bpc);
+							}
+						}
+					} finally {
+						reader.deinitialize();
+					}
+					return null;
+				}
+			});
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (Future<Void> future : executor.invokeAll(workers)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while extracting the traces", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return traces;
+	}
+
+	/**
+	 * Returns the mean of the components at {@code offsets} in {@code frame}.
+	 */
+	private static double mean(final ByteBuffer frame, final int[] offsets, final int bpc) {
+		if (offsets.length == 0) return Double.NaN;
+		double sum = 0;
+		if (bpc == 8) {
+			for (int o : offsets) sum += frame.get(o) & 0xFF;
+		} else if (bpc == 16) {
+			for (int o : offsets) sum += frame.getShort(o) & 0xFFFF;
+		} else {
+			for (int o : offsets) sum += frame.getFloat(o);
+		}
+		return sum / offsets.length;
+	}
+}
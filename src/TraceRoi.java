@@ -0,0 +1,116 @@
+import java.awt.Polygon;
+import java.awt.Rectangle;
+
+/**
+ * A region of interest for {@link TraceExtractor}: a rectangle, a polygon or an
+ * arbitrary mask.
+ *
+ * <p>A polygon contains the pixels whose centers are inside of it. The pixels of
+ * an ROI are converted into a list of buffer offsets once, by
+ * {@link #offsets(int, int, int, int, int, int, int)}, before any frame is read.</p>
+ */
+public class TraceRoi {
+
+	/** The name of the ROI, can be {@code null} */
+	public final String name;
+
+	/** The x offset of the bounding box, in pixels */
+	public final int x;
+
+	/** The y offset of the bounding box, in pixels */
+	public final int y;
+
+	/** The width of the bounding box, in pixels */
+	public final int width;
+
+	/** The height of the bounding box, in pixels */
+	public final int height;
+
+	/** The pixels of the bounding box that are in the ROI (row major), or {@code null} for all of them */
+	private final boolean[] mask;
+
+	private TraceRoi(final String name, final int x, final int y, final int width, final int height, final boolean[] mask) {
+		if (width < 1 || height < 1) throw new IllegalArgumentException("The ROI must contain at least one pixel");
+		this.name = name;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.mask = mask;
+	}
+
+	/**
+	 * A rectangular ROI.
+	 */
+	public static TraceRoi rectangle(final String name, final int x, final int y, final int width, final int height) {
+		return new TraceRoi(name, x, y, width, height, null);
+	}
+
+	/**
+	 * A polygon ROI with the vertices {@code (xPoints[i], yPoints[i])}, in pixels.
+	 */
+	public static TraceRoi polygon(final String name, final int[] xPoints, final int[] yPoints) {
+		if (xPoints.length != yPoints.length || xPoints.length < 3)
+			throw new IllegalArgumentException("A polygon needs at least 3 vertices");
+		final Polygon polygon = new Polygon(xPoints, yPoints, xPoints.length);
+		final Rectangle bounds = polygon.getBounds();
+		final boolean[] mask = new boolean[bounds.width * bounds.height];
+		for (int j = 0; j < bounds.height; j++) {
+			for (int i = 0; i < bounds.width; i++) {
+				mask[j * bounds.width + i] = polygon.contains(bounds.x + i + 0.5, bounds.y + j + 0.5);
+			}
+		}
+		return new TraceRoi(name, bounds.x, bounds.y, bounds.width, bounds.height, mask);
+	}
+
+	/**
+	 * An ROI that contains the pixels of a {@code width x height} rectangle at
+	 * {@code (x, y)} for which {@code mask[row * width + column]} is {@code true}.
+	 */
+	public static TraceRoi mask(final String name, final int x, final int y, final int width, final int height, final boolean[] mask) {
+		if (mask.length != width * height)
+			throw new IllegalArgumentException("The mask must have width * height elements");
+		return new TraceRoi(name, x, y, width, height, mask.clone());
+	}
+
+	/**
+	 * Returns whether the pixel {@code (px, py)} of the image is in the ROI.
+	 */
+	public boolean contains(final int px, final int py) {
+		if (px < x || py < y || px >= x + width || py >= y + height) return false;
+		return mask == null || mask[(py - y) * width + (px - x)];
+	}
+
+	/**
+	 * Returns the byte offsets of the pixels of the ROI that are inside of the image
+	 * in a buffer that holds the {@code (originX, originY)} corner of the image.
+	 *
+	 * @param imageWidth the width of the image, in pixels
+	 * @param imageHeight the height of the image, in pixels
+	 * @param originX the x offset of the first pixel in the buffer
+	 * @param originY the y offset of the first line in the buffer
+	 * @param lineSize the number of bytes in a line of the buffer
+	 * @param pixelSize the number of bytes in a pixel (all components)
+	 * @param componentOffset the byte offset of the component within a pixel
+	 */
+	int[] offsets(final int imageWidth, final int imageHeight, final int originX, final int originY,
+			final int lineSize, final int pixelSize, final int componentOffset) {
+		final int x0 = Math.max(x, 0), x1 = Math.min(x + width, imageWidth);
+		final int y0 = Math.max(y, 0), y1 = Math.min(y + height, imageHeight);
+		int n = 0;
+		for (int py = y0; py < y1; py++) {
+			for (int px = x0; px < x1; px++) {
+				if (contains(px, py)) n++;
+			}
+		}
+		final int[] offsets = new int[n];
+		n = 0;
+		for (int py = y0; py < y1; py++) {
+			for (int px = x0; px < x1; px++) {
+				if (contains(px, py))
+					offsets[n++] = (py - originY) * lineSize + (px - originX) * pixelSize + componentOffset;
+			}
+		}
+		return offsets;
+	}
+}
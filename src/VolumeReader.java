@@ -0,0 +1,369 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads a block of an ND2 file, e.g., a (C, Z, Y, X) or a (T, Z, Y, X) volume, into
+ * one contiguous buffer.
+ *
+ * <p>The sequence indices of the block are resolved from the experiment levels
+ * (see {@link ND2SDK#getSeqIndexFromCoords(int[])}), the frames are decoded by a
+ * number of threads that each have the file open, and the pixels of every channel
+ * (optionally only an XY rectangle, which is then the only part of the frame that is
+ * read) are written directly to their place in the destination. Every component
+ * is stored in {@code uiBpcInMemory / 8} bytes, in little-endian byte order.</p>
+ *
+ * <p>The files that the threads open are kept open until {@link #close()} is called,
+ * so that the next volume of a time-lapse can be read without opening them again.
+ * They are opened again if {@code nd2} is initialized with another file. The
+ * threads are daemon threads, so a VolumeReader that is not closed does not keep
+ * the JVM alive, but its files stay open.
+ * See ND2SDKForeign#readVolume for a {@code MemorySegment} destination.</p>
+ */
+public class VolumeReader implements Closeable {
+
+	/** The axes of a block, in the order of {@link ND2SDK#getSeqIndexFromCoords(int[])}, and the channel */
+	private static final String AXES = "TPZC";
+
+	/** One channel (C), Z stack (Z) and XY plane (YX) after the other */
+	public static final String LAYOUT_CZYX = "CZYX";
+
+	/** One time point (T), Z stack (Z) and XY plane (YX) after the other */
+	public static final String LAYOUT_TZYX = "TZYX";
+
+	/**
+	 * The part of a file to read. An axis that is not set is read completely.
+	 */
+	public static class Ranges {
+		final int[] start = new int[AXES.length()];
+		final int[] count = {-1, -1, -1, -1};
+		int x = 0, y = 0, width = -1, height = -1;
+
+		/** Reads {@code count} time points from {@code start} */
+		public Ranges t(final int start, final int count) { return set(0, start, count); }
+
+		/** Reads {@code count} multipoint positions from {@code start} */
+		public Ranges p(final int start, final int count) { return set(1, start, count); }
+
+		/** Reads {@code count} Z slices from {@code start} */
+		public Ranges z(final int start, final int count) { return set(2, start, count); }
+
+		/** Reads {@code count} channels from {@code start} */
+		public Ranges c(final int start, final int count) { return set(3, start, count); }
+
+		/** Reads only the {@code width x height} rectangle at {@code (x, y)} of every frame */
+		public Ranges rect(final int x, final int y, final int width, final int height) {
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			return this;
+		}
+
+		private Ranges set(final int axis, final int start, final int count) {
+			this.start[axis] = start;
+			this.count[axis] = count;
+			return this;
+		}
+	}
+
+	/**
+	 * Returns the ByteBuffer to write an XY plane to.
+	 */
+	interface PlaneTarget {
+		ByteBuffer plane(long offset, int length);
+	}
+
+	private final ND2SDK nd2;
+	private final int numThreads;
+	private final Reader[] readers;
+	private final ExecutorService executor;
+
+	/**
+	 * @param nd2 an ND2 file that was opened with {@link ND2SDK#initialize(String)} or
+	 * {@link ND2SDK#initializeMetadata(String)}, only its metadata is used
+	 * @param numThreads the number of threads (and open copies of the file) that decode frames
+	 */
+	public VolumeReader(final ND2SDK nd2, final int numThreads) {
+		if (numThreads < 1) throw new IllegalArgumentException("numThreads must be >= 1");
+		this.nd2 = nd2;
+		this.numThreads = numThreads;
+		this.readers = new Reader[numThreads];
+		this.executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "VolumeReader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of bytes of a block.
+	 *
+	 * @param ranges the part of the file
+	 * @param layout the order of the axes, e.g., {@link #LAYOUT_CZYX}
+	 * @throws IOException if the ranges are outside of the file or do not fit the layout
+	 */
+	public long volumeBytes(final Ranges ranges, final String layout) throws IOException {
+		return new Block(ranges, layout).totalBytes;
+	}
+
+	/**
+	 * Reads a block of the file into {@code dst}.
+	 *
+	 * @param ranges the part of the file
+	 * @param layout the order of the axes: some of T, P, Z and C followed by YX, e.g.,
+	 * {@link #LAYOUT_CZYX} or {@link #LAYOUT_TZYX}. An axis that is not in the layout
+	 * must have only one value in {@code ranges}.
+	 * @param dst a direct ByteBuffer with at least {@link #volumeBytes(Ranges, String)} bytes
+	 * @return {@code dst}, in little-endian byte order
+	 * @throws IOException if the ranges are not valid or a frame cannot be read
+	 */
+	public ByteBuffer readVolume(final Ranges ranges, final String layout, final ByteBuffer dst) throws IOException {
+		final Block block = new Block(ranges, layout);
+		if (!dst.isDirect() || dst.capacity() < block.totalBytes)
+			throw new IOException("The ByteBuffer must be direct and have at least " + block.totalBytes + " bytes");
+		read(block, new PlaneTarget() {
+			@Override
+			public ByteBuffer plane(final long offset, final int length) {
+				return dst.slice((int) offset, length);
+			}
+		});
+		return dst.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Reads a block into the planes that {@code target} returns.
+	 */
+	void read(final Ranges ranges, final String layout, final long capacity, final PlaneTarget target) throws IOException {
+		final Block block = new Block(ranges, layout);
+		if (capacity < block.totalBytes)
+			throw new IOException("The destination must have at least " + block.totalBytes + " bytes");
+		read(block, target);
+	}
+
+	private void read(final Block block, final PlaneTarget target) throws IOException {
+		// the sequence index and the offset in the destination of every frame
+		final int nt = block.count(0), np = block.count(1), nz = block.count(2);
+		final int numFrames = nt * np * nz;
+		final int[] seqIndex = new int[numFrames];
+		final long[] offset = new long[numFrames];
+		int i = 0;
+		for (int t = 0; t < nt; t++) {
+			for (int p = 0; p < np; p++) {
+				for (int z = 0; z < nz; z++) {
+					seqIndex[i] = nd2.getSeqIndexFromCoords(new int[] {
+							block.start(0) + t, block.start(1) + p, block.start(2) + z, 0});
+					offset[i++] = t * block.stride(0) + p * block.stride(1) + z * block.stride(2);
+				}
+			}
+		}
+
+		final AtomicInteger next = new AtomicInteger();
+		final int threads = Math.min(numThreads, numFrames);
+		final List<Callable<Void>> workers = new ArrayList<Callable<Void>>(threads);
+		for (int w = 0; w < threads; w++) {
+			final int id = w;
+			workers.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					final Reader reader = reader(id, block.fullFrame);
+					for (int f = next.getAndIncrement(); f < numFrames; f = next.getAndIncrement()) {
+						final ByteBuffer frame = reader.read(seqIndex[f], block);
+						for (int c = 0; c < block.count(3); c++) {
+							final ByteBuffer plane = target.plane(offset[f] + c * block.stride(3), block.planeBytes)
+									.order(ByteOrder.LITTLE_ENDIAN);
+							block.scatter(frame, reader.lineSize, block.start(3) + c, plane);
+						}
+					}
+					return null;
+				}
+			});
+		}
+
+		try {
+			for (Future<Void> future : executor.invokeAll(workers)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading the volume", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Closes the files that the threads opened.
+	 */
+	@Override
+	public synchronized void close() {
+		executor.shutdownNow();
+		for (int i = 0; i < readers.length; i++) {
+			if (readers[i] != null) readers[i].nd2.deinitialize();
+			readers[i] = null;
+		}
+	}
+
+	/**
+	 * Returns the reader of a thread, which has the current file of {@code nd2} open
+	 * and has allocated a picture if {@code fullFrame} (a rectangle only needs the metadata).
+	 */
+	private synchronized Reader reader(final int id, final boolean fullFrame) throws IOException {
+		final Reader current = readers[id];
+		if (current != null && current.filename.equals(nd2.filename) && (current.picture || !fullFrame))
+			return current;
+		if (current != null) current.nd2.deinitialize();
+		readers[id] = null;
+
+		final ND2SDK reader = new ND2SDK(nd2.getBackendName());
+		try {
+			if (fullFrame) {
+				reader.initialize(nd2.filename);
+			} else {
+				reader.initializeMetadata(nd2.filename);
+			}
+		} catch (IOException e) {
+			reader.deinitialize();
+			throw e;
+		}
+		readers[id] = new Reader(reader, nd2.filename, fullFrame);
+		return readers[id];
+	}
+
+	/**
+	 * An open copy of the file and the buffer for a rectangle of a frame.
+	 */
+	private static class Reader {
+		final ND2SDK nd2;
+		final String filename;
+		final boolean picture;
+		ByteBuffer rect;
+		int lineSize;
+
+		Reader(final ND2SDK nd2, final String filename, final boolean picture) {
+			this.nd2 = nd2;
+			this.filename = filename;
+			this.picture = picture;
+		}
+
+		/**
+		 * Returns the frame, or the rectangle of the frame, whose first pixel is {@code (block.x, block.y)}.
+		 */
+		ByteBuffer read(final int seqIndex, final Block block) throws IOException {
+			if (block.fullFrame) {
+				lineSize = nd2.attribs.uiWidthBytes;
+				return nd2.getSeqBytes(seqIndex);
+			}
+			lineSize = nd2.rectLineSize(block.width);
+			if (rect == null || rect.capacity() < lineSize * block.height)
+				rect = ByteBuffer.allocateDirect(lineSize * block.height);
+			return nd2.getSeqRectBytes(seqIndex, block.x, block.y, block.width, block.height, rect);
+		}
+	}
+
+	/**
+	 * The ranges of a block, resolved against the file, and the byte strides of the axes in the layout.
+	 */
+	private class Block {
+		final int[] starts = new int[AXES.length()];
+		final int[] counts = new int[AXES.length()];
+		final long[] strides = new long[AXES.length()];
+		final int x, y, width, height, bytesPerComp, planeBytes;
+		final long totalBytes;
+		final boolean fullFrame;
+
+		Block(final Ranges ranges, final String layout) throws IOException {
+			if (nd2.hFile == 0)
+				throw new IOException("An ND2 file has not been initialized yet");
+
+			final int[] sizes = {nd2.numFrames, nd2.numPoints, nd2.numSlices, nd2.numChannels};
+			for (int a = 0; a < AXES.length(); a++) {
+				starts[a] = ranges.start[a];
+				counts[a] = ranges.count[a] < 0 ? sizes[a] - starts[a] : ranges.count[a];
+				if (starts[a] < 0 || counts[a] < 1 || starts[a] + counts[a] > sizes[a])
+					throw new IOException(String.format("Invalid range [%d, %d) of %c, the file has %d",
+							starts[a], starts[a] + counts[a], AXES.charAt(a), sizes[a]));
+			}
+
+			x = ranges.x;
+			y = ranges.y;
+			width = ranges.width < 0 ? nd2.width - x : ranges.width;
+			height = ranges.height < 0 ? nd2.height - y : ranges.height;
+			if (x < 0 || y < 0 || width < 1 || height < 1 || x + width > nd2.width || y + height > nd2.height)
+				throw new IOException(String.format("The rectangle (%d, %d, %d, %d) is not inside of the "
+						+ "%d x %d image", x, y, width, height, nd2.width, nd2.height));
+			fullFrame = width == nd2.width && height == nd2.height;
+			bytesPerComp = nd2.attribs.uiBpcInMemory / 8;
+			if ((long) width * height * bytesPerComp > Integer.MAX_VALUE)
+				throw new IOException("An XY plane of the block must be smaller than 2 GB");
+			planeBytes = width * height * bytesPerComp;
+
+			// the strides, from the last axis before YX to the first one
+			if (!layout.endsWith("YX"))
+				throw new IOException("The layout must end with YX: " + layout);
+			final String order = layout.substring(0, layout.length() - 2);
+			long stride = planeBytes;
+			for (int k = order.length() - 1; k >= 0; k--) {
+				final int a = AXES.indexOf(order.charAt(k));
+				if (a < 0 || order.indexOf(order.charAt(k)) != k)
+					throw new IOException("The layout must have distinct axes from " + AXES + " before YX: " + layout);
+				strides[a] = stride;
+				stride *= counts[a];
+			}
+			for (int a = 0; a < AXES.length(); a++) {
+				if (order.indexOf(AXES.charAt(a)) < 0 && counts[a] != 1)
+					throw new IOException(String.format("The range of %c must have one value, %c is not in the layout %s",
+							AXES.charAt(a), AXES.charAt(a), layout));
+			}
+			totalBytes = stride;
+		}
+
+		int start(final int axis) {
+			return starts[axis];
+		}
+
+		int count(final int axis) {
+			return counts[axis];
+		}
+
+		long stride(final int axis) {
+			return strides[axis];
+		}
+
+		/**
+		 * Copies component {@code c} from a frame (or the rectangle of a frame) to an XY plane.
+		 */
+		void scatter(final ByteBuffer frame, final int lineSize, final int c, final ByteBuffer plane) {
+			final int numComponents = nd2.attribs.uiComp;
+			final int pixelSize = numComponents * bytesPerComp;
+			final int rowBytes = width * bytesPerComp;
+			for (int row = 0; row < height; row++) {
+				final int src = row * lineSize + c * bytesPerComp;
+				final int dst = row * rowBytes;
+				if (numComponents == 1) {
+					plane.put(dst, frame, src, rowBytes);
+				} else if (bytesPerComp == 2) {
+					for (int i = 0; i < width; i++) plane.putShort(dst + 2 * i, frame.getShort(src + i * pixelSize));
+				} else if (bytesPerComp == 4) {
+					for (int i = 0; i < width; i++) plane.putInt(dst + 4 * i, frame.getInt(src + i * pixelSize));
+				} else {
+					for (int i = 0; i < width; i++) plane.put(dst + i, frame.get(src + i * pixelSize));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,266 @@
+// nd2ReadSDKStub.c
+//
+// A stand-in for the nd2ReadSDK library that does not read any files. Every
+// "file" is a synthetic time-lapse Z-stack whose pixels are computed on demand.
+// Every open handle holds a file descriptor of /dev/null, so handles that are
+// never closed show up in /proc/self/fd like the files of the real library.
+// It exists so that ND2SDK.cpp (JNI) and ND2SDKForeign.java (java.lang.foreign)
+// can be built, benchmarked and load-tested on any Linux machine, e.g.,
+//
+//   gcc -shared -fPIC -O2 -I include -o libnd2ReadSDK.so src/nd2ReadSDKStub.c
+//
+// The synthetic file is configured with environment variables:
+//
+//   ND2STUB_WIDTH, ND2STUB_HEIGHT   image size in pixels (default 512 x 512)
+//   ND2STUB_COMP                    number of components (default 1)
+//   ND2STUB_BPC                     bits per component in memory, 8, 16 or 32 (default 16)
+//   ND2STUB_BPC_SIGNIFICANT         significant bits per component (default 12 for 16-bit)
+//   ND2STUB_FRAMES, ND2STUB_SLICES  number of time points and Z slices (default 10 x 5)
+//   ND2STUB_TILE_WIDTH, ND2STUB_TILE_HEIGHT
+//                                   the tile size that is reported in the attributes (default 0, not tiled)
+//   ND2STUB_OPEN_USEC               the time that opening a file takes, in microseconds (default 0)
+//   ND2STUB_DECODE_USEC             the time that decoding a frame takes, in microseconds (default 0)
+//   ND2STUB_DECODE_USEC_PER_MPIXEL  the additional time per million decoded pixels (default 0)
+//
+
+#include <fcntl.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <wchar.h>
+#include "nd2ReadSDK.h"
+
+static LIMUINT envOrDefault(const char *name, LIMUINT value) {
+    const char *s = getenv(name);
+    return (s != NULL && *s != 0) ? (LIMUINT)strtoul(s, NULL, 10) : value;
+}
+
+typedef struct {
+    LIMUINT width, height, comp, bpc, bpcSignificant, frames, slices, tileWidth, tileHeight;
+} StubConfig;
+
+static StubConfig config() {
+    StubConfig c;
+    c.width  = envOrDefault("ND2STUB_WIDTH", 512);
+    c.height = envOrDefault("ND2STUB_HEIGHT", 512);
+    c.comp   = envOrDefault("ND2STUB_COMP", 1);
+    c.bpc    = envOrDefault("ND2STUB_BPC", 16);
+    c.bpcSignificant = envOrDefault("ND2STUB_BPC_SIGNIFICANT", c.bpc == 16 ? 12 : c.bpc);
+    c.frames = envOrDefault("ND2STUB_FRAMES", 10);
+    c.slices = envOrDefault("ND2STUB_SLICES", 5);
+    c.tileWidth = envOrDefault("ND2STUB_TILE_WIDTH", 0);
+    c.tileHeight = envOrDefault("ND2STUB_TILE_HEIGHT", 0);
+    return c;
+}
+
+static LIMUINT lineSize(LIMUINT width, LIMUINT comp, LIMUINT bpc) {
+    return ((width * comp * (bpc / 8)) + 3) / 4 * 4;
+}
+
+// Sleeps for the injected latency of an operation
+static void injectLatency(double usec) {
+    struct timespec t;
+    if (usec <= 0) return;
+    t.tv_sec = (time_t)(usec / 1e6);
+    t.tv_nsec = (long)((usec - t.tv_sec * 1e6) * 1e3);
+    while (nanosleep(&t, &t) != 0) {}
+}
+
+static void injectDecodeLatency(LIMUINT pixels) {
+    injectLatency(envOrDefault("ND2STUB_DECODE_USEC", 0) + envOrDefault("ND2STUB_DECODE_USEC_PER_MPIXEL", 0) * (pixels / 1e6));
+}
+
+// A handle is the file descriptor + 1 and is valid while its flag is set
+#define MAX_HANDLES 65536
+static unsigned char openHandles[MAX_HANDLES];
+
+static int isOpen(LIMFILEHANDLE hFile) {
+    return hFile > 0 && hFile < MAX_HANDLES && __sync_fetch_and_add(&openHandles[hFile], 0);
+}
+
+LIMFILEAPI LIMFILEHANDLE Lim_FileOpenForRead(LIMCWSTR wszFileName) {
+    int fd;
+    if (wszFileName == NULL || wszFileName[0] == 0) return 0;
+    injectLatency(envOrDefault("ND2STUB_OPEN_USEC", 0));
+    fd = open("/dev/null", O_RDONLY);
+    if (fd < 0 || fd + 1 >= MAX_HANDLES) {
+        if (fd >= 0) close(fd);
+        return 0;
+    }
+    __sync_lock_test_and_set(&openHandles[fd + 1], 1);
+    return fd + 1;
+}
+
+LIMFILEAPI LIMRESULT Lim_FileClose(LIMFILEHANDLE hFile) {
+    if (hFile <= 0 || hFile >= MAX_HANDLES || !__sync_bool_compare_and_swap(&openHandles[hFile], 1, 0)) return LIM_ERR_HANDLE;
+    close(hFile - 1);
+    return LIM_OK;
+}
+
+LIMFILEAPI LIMRESULT Lim_FileGetAttributes(LIMFILEHANDLE hFile, LIMATTRIBUTES* a) {
+    StubConfig c = config();
+    if (!isOpen(hFile)) return LIM_ERR_HANDLE;
+    a->uiWidth = c.width;
+    a->uiWidthBytes = lineSize(c.width, c.comp, c.bpc);
+    a->uiHeight = c.height;
+    a->uiComp = c.comp;
+    a->uiBpcInMemory = c.bpc;
+    a->uiBpcSignificant = c.bpcSignificant;
+    a->uiSequenceCount = c.frames * c.slices;
+    a->uiTileWidth = c.tileWidth;
+    a->uiTileHeight = c.tileHeight;
+    a->uiCompression = 2;
+    a->uiQuality = 100;
+    return LIM_OK;
+}
+
+LIMFILEAPI LIMRESULT Lim_FileGetMetadata(LIMFILEHANDLE hFile, LIMMETADATA_DESC* m) {
+    static const LIMUINT colors[] = {0x00FF00, 0x0000FF, 0xFF0000, 0xFF00FF};
+    StubConfig c = config();
+    LIMUINT i;
+    if (!isOpen(hFile)) return LIM_ERR_HANDLE;
+    memset(m, 0, sizeof(LIMMETADATA_DESC));
+    m->dTimeStart = 2457000.5;
+    m->dCalibration = 0.108;
+    m->dAspect = 1.0;
+    wcscpy(m->wszObjectiveName, L"Stub 60x Oil");
+    m->dObjectiveMag = 60.0;
+    m->dObjectiveNA = 1.4;
+    m->dRefractIndex1 = 1.515;
+    m->uiPlaneCount = c.comp;
+    m->uiComponentCount = c.comp;
+    for (i = 0; i < c.comp && i < LIMMAXPICTUREPLANES; i++) {
+        m->pPlanes[i].uiCompCount = 1;
+        m->pPlanes[i].uiColorRGB = colors[i % 4];
+        swprintf(m->pPlanes[i].wszName, 256, L"Channel %u", i);
+        m->pPlanes[i].dEmissionWL = 500.0 + 50.0 * i;
+    }
+    return LIM_OK;
+}
+
+LIMFILEAPI LIMRESULT Lim_FileGetTextinfo(LIMFILEHANDLE hFile, LIMTEXTINFO* t) {
+    if (!isOpen(hFile)) return LIM_ERR_HANDLE;
+    memset(t, 0, sizeof(LIMTEXTINFO));
+    wcscpy(t->wszImageID, L"stub");
+    wcscpy(t->wszAuthor, L"nd2ReadSDKStub");
+    wcscpy(t->wszDate, L"1/1/2016  12:00:00 PM");
+    wcscpy(t->wszCapturing, L"Camera Name: Stub\nBinning: 1x1");
+    return LIM_OK;
+}
+
+LIMFILEAPI LIMRESULT Lim_FileGetExperiment(LIMFILEHANDLE hFile, LIMEXPERIMENT* e) {
+    StubConfig c = config();
+    if (!isOpen(hFile)) return LIM_ERR_HANDLE;
+    memset(e, 0, sizeof(LIMEXPERIMENT));
+    e->uiLevelCount = 2;
+    e->pAllocatedLevels[0].uiExpType = LIMLOOP_TIME;
+    e->pAllocatedLevels[0].uiLoopSize = c.frames;
+    e->pAllocatedLevels[0].dInterval = 100.0;
+    e->pAllocatedLevels[1].uiExpType = LIMLOOP_Z;
+    e->pAllocatedLevels[1].uiLoopSize = c.slices;
+    e->pAllocatedLevels[1].dInterval = 0.2;
+    return LIM_OK;
+}
+
+LIMFILEAPI LIMRESULT Lim_FileGetBinaryDescriptors(LIMFILEHANDLE hFile, LIMBINARIES* b) {
+    if (!isOpen(hFile)) return LIM_ERR_HANDLE;
+    b->uiCount = 0;
+    return LIM_OK;
+}
+
+LIMFILEAPI LIMSIZE Lim_InitPicture(LIMPICTURE* p, LIMUINT width, LIMUINT height, LIMUINT bpc, LIMUINT components) {
+    p->uiWidth = width;
+    p->uiHeight = height;
+    p->uiBitsPerComp = bpc;
+    p->uiComponents = components;
+    p->uiWidthBytes = lineSize(width, components, bpc);
+    p->uiSize = (LIMSIZE)p->uiWidthBytes * height;
+    p->pImageData = calloc(1, p->uiSize);
+    return p->uiSize;
+}
+
+LIMFILEAPI void Lim_DestroyPicture(LIMPICTURE* p) {
+    free(p->pImageData);
+    p->pImageData = NULL;
+}
+
+LIMFILEAPI LIMUINT Lim_GetSeqIndexFromCoords(LIMEXPERIMENT* e, LIMUINT* coords) {
+    LIMUINT slices = e->uiLevelCount > 1 ? e->pAllocatedLevels[1].uiLoopSize : 1;
+    return coords[0] * slices + coords[2];
+}
+
+LIMFILEAPI void Lim_GetCoordsFromSeqIndex(LIMEXPERIMENT* e, LIMUINT uiSeqIdx, LIMUINT* coords) {
+    LIMUINT slices = e->uiLevelCount > 1 ? e->pAllocatedLevels[1].uiLoopSize : 1;
+    coords[0] = uiSeqIdx / slices;
+    coords[1] = 0;
+    coords[2] = uiSeqIdx % slices;
+    coords[3] = 0;
+}
+
+// The synthetic value of component c of pixel (x, y) in frame seq
+static double pixelValue(const StubConfig *c, LIMUINT seq, LIMUINT x, LIMUINT y, LIMUINT comp) {
+    LIMUINT mask = c->bpcSignificant >= 32 ? 0xFFFFFFFFu : ((1u << c->bpcSignificant) - 1);
+    LIMUINT v = (x * 3 + y * 5 + seq * 7 + comp * 11) & mask;
+    return c->bpc == 32 ? v / 4096.0 : (double)v;
+}
+
+static void fillLocalMetadata(const StubConfig *c, LIMUINT seq, LIMLOCALMETADATA* m) {
+    if (m == NULL) return;
+    m->dTimeMSec = (seq / c->slices) * 100.0;
+    m->dXPos = 1000.0;
+    m->dYPos = 2000.0;
+    m->dZPos = (seq % c->slices) * 0.2;
+}
+
+static void writePixel(void *dst, LIMUINT bpc, size_t index, double value) {
+    if (bpc == 8) ((unsigned char *)dst)[index] = (unsigned char)value;
+    else if (bpc == 16) ((unsigned short *)dst)[index] = (unsigned short)value;
+    else ((float *)dst)[index] = (float)value;
+}
+
+LIMFILEAPI LIMRESULT Lim_FileGetImageData(LIMFILEHANDLE hFile, LIMUINT uiSeqIndex, LIMPICTURE* p, LIMLOCALMETADATA* pImgInfo) {
+    StubConfig c = config();
+    LIMUINT x, y, k;
+    if (!isOpen(hFile)) return LIM_ERR_HANDLE;
+    if (uiSeqIndex >= c.frames * c.slices) return LIM_ERR_OUTOFRANGE;
+    if (p == NULL || p->pImageData == NULL || p->uiWidth != c.width || p->uiHeight != c.height) return LIM_ERR_INVALIDARG;
+    injectDecodeLatency(c.width * c.height);
+    for (y = 0; y < c.height; y++) {
+        unsigned char *line = (unsigned char *)p->pImageData + (size_t)y * p->uiWidthBytes;
+        for (x = 0; x < c.width; x++) {
+            for (k = 0; k < c.comp; k++) {
+                writePixel(line, c.bpc, (size_t)x * c.comp + k, pixelValue(&c, uiSeqIndex, x, y, k));
+            }
+        }
+    }
+    fillLocalMetadata(&c, uiSeqIndex, pImgInfo);
+    return LIM_OK;
+}
+
+// Nearest-neighbour version of the SDK call: the full image is scaled to
+// uiDstTotalW x uiDstTotalH and the (uiDstX, uiDstY, uiDstW, uiDstH) rectangle
+// of the scaled image is written to pBuffer
+LIMFILEAPI LIMRESULT Lim_FileGetImageRectData(LIMFILEHANDLE hFile, LIMUINT uiSeqIndex, LIMUINT uiDstTotalW, LIMUINT uiDstTotalH,
+        LIMUINT uiDstX, LIMUINT uiDstY, LIMUINT uiDstW, LIMUINT uiDstH, void* pBuffer, LIMUINT uiDstLineSize,
+        LIMINT iStretchMode, LIMLOCALMETADATA* pImgInfo) {
+    StubConfig c = config();
+    LIMUINT x, y, k;
+    if (!isOpen(hFile)) return LIM_ERR_HANDLE;
+    if (uiSeqIndex >= c.frames * c.slices) return LIM_ERR_OUTOFRANGE;
+    if (pBuffer == NULL || uiDstTotalW == 0 || uiDstTotalH == 0
+            || uiDstX + uiDstW > uiDstTotalW || uiDstY + uiDstH > uiDstTotalH) return LIM_ERR_INVALIDARG;
+    injectDecodeLatency(uiDstW * uiDstH);
+    for (y = 0; y < uiDstH; y++) {
+        unsigned char *line = (unsigned char *)pBuffer + (size_t)y * uiDstLineSize;
+        LIMUINT sy = (LIMUINT)(((unsigned long long)(uiDstY + y) * c.height) / uiDstTotalH);
+        for (x = 0; x < uiDstW; x++) {
+            LIMUINT sx = (LIMUINT)(((unsigned long long)(uiDstX + x) * c.width) / uiDstTotalW);
+            for (k = 0; k < c.comp; k++) {
+                writePixel(line, c.bpc, (size_t)x * c.comp + k, pixelValue(&c, uiSeqIndex, sx, sy, k));
+            }
+        }
+    }
+    fillLocalMetadata(&c, uiSeqIndex, pImgInfo);
+    return LIM_OK;
+}